@@ -0,0 +1,114 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import oracle.kv.Depth;
+import oracle.kv.Direction;
+import oracle.kv.Key;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.Value;
+import oracle.kv.Version;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * In-memory records and table settings for the benchmarks, so that the read
+ * path can be measured without a store. Major paths have majorDepth
+ * components and fanOut minor keys each, named like the mapped columns.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+class KVHiveBenchData {
+
+    static final Path TABLE_PATH = new Path("/tmp/kv_bench");
+    private static final Version VERSION = new Version(new UUID(1, 1), 1);
+
+    /**
+     * Returns nRecords records, sorted by key as a partition scan returns
+     * them.
+     */
+    static List<KeyValueVersion> records(int nRecords, int majorDepth, int fanOut, int valueSize) {
+        List<KeyValueVersion> ret = new ArrayList<KeyValueVersion>(nRecords);
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'v');
+        Value v = Value.createValue(value);
+        for (int i = 0; ret.size() < nRecords; i++) {
+            List<String> majorPath = new ArrayList<String>(majorDepth);
+            for (int d = 0; d < majorDepth; d++) {
+                majorPath.add(String.format("major%d_%08d", d, i));
+            }
+            for (int m = 0; m < fanOut && ret.size() < nRecords; m++) {
+                Key key = Key.createKey(majorPath, Arrays.asList(minorKey(m)));
+                ret.add(new KeyValueVersion(key, v, VERSION));
+            }
+        }
+        return ret;
+    }
+
+    static JobConf conf(int majorDepth, int fanOut, String rowMode) {
+        JobConf conf = new JobConf(false);
+        conf.set(ConfigProperties.KV_NAME, "kvstore");
+        conf.set(ConfigProperties.KV_HOST_PORT, "localhost:5000");
+        conf.set(ConfigProperties.KV_MAJOR_KEYS_MAPPING, join("major", majorDepth));
+        conf.set(ConfigProperties.KV_MINOR_KEYS_MAPPING, join("minor", fanOut));
+        conf.set(ConfigProperties.KV_ROW_MODE, rowMode);
+        return conf;
+    }
+
+    /**
+     * Hive table properties matching conf, for the SerDe.
+     */
+    static Properties tableProperties(JobConf conf) {
+        Properties ret = new Properties();
+        ret.setProperty(ConfigProperties.KV_MAJOR_KEYS_MAPPING, conf.get(ConfigProperties.KV_MAJOR_KEYS_MAPPING));
+        ret.setProperty(ConfigProperties.KV_MINOR_KEYS_MAPPING, conf.get(ConfigProperties.KV_MINOR_KEYS_MAPPING));
+        return ret;
+    }
+
+    static KVHiveInputSplit split(int partId) {
+        return new KVHiveInputSplit(TABLE_PATH).
+               setKVStoreName("kvstore").
+               setKVHelperHosts(new String[] {"node01:5000", "node02:5000", "node03:5000"}).
+               setKVPart(partId).
+               setLocations(new String[] {"node01", "node02", "node03"}).
+               setDirection(Direction.FORWARD).
+               setDepth(Depth.PARENT_AND_DESCENDANTS).
+               setEstimate(100000, 10000000);
+    }
+
+    private static String minorKey(int m) {
+        return "minor" + m;
+    }
+
+    private static String join(String prefix, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(prefix).append(i);
+        }
+        return sb.toString();
+    }
+
+}
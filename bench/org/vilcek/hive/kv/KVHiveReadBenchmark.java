@@ -0,0 +1,119 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import oracle.kv.KeyValueVersion;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Records per second through KVHiveRecordReader.next, alone and followed by
+ * KVHiveSerDe.deserialize and the decoding of every column, over in-memory
+ * records. Run with -prof gc for the allocation per record.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KVHiveReadBenchmark {
+
+    static final int RECORDS = 10000;
+
+    @Param({"1", "3"})
+    public int majorDepth;
+
+    @Param({"1", "10"})
+    public int minorFanOut;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({"record", "pivot"})
+    public String rowMode;
+
+    private List<KeyValueVersion> records;
+    private JobConf conf;
+    private KVHiveInputSplit split;
+    private KVHiveSerDe serde;
+    private StructObjectInspector oi;
+    private List<? extends StructField> fields;
+    private LongWritable key;
+    private KVHiveRow row;
+
+    @Setup
+    public void setup() throws SerDeException {
+        records = KVHiveBenchData.records(RECORDS, majorDepth, minorFanOut, valueSize);
+        conf = KVHiveBenchData.conf(majorDepth, minorFanOut, rowMode);
+        split = KVHiveBenchData.split(1);
+        serde = new KVHiveSerDe();
+        serde.initialize(conf, KVHiveBenchData.tableProperties(conf));
+        oi = (StructObjectInspector) serde.getObjectInspector();
+        fields = oi.getAllStructFieldRefs();
+        key = new LongWritable();
+        row = new KVHiveRow(fields.size());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long next() throws IOException {
+        KVHiveRecordReader reader = new KVHiveRecordReader(split, conf, records.iterator());
+        long rows = 0;
+        while (reader.next(key, row)) {
+            rows++;
+        }
+        reader.close();
+        return rows;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void nextAndDeserialize(Blackhole bh) throws IOException, SerDeException {
+        KVHiveRecordReader reader = new KVHiveRecordReader(split, conf, records.iterator());
+        while (reader.next(key, row)) {
+            Object o = serde.deserialize(row);
+            for (StructField f : fields) {
+                bh.consume(oi.getStructFieldData(o, f));
+            }
+        }
+        reader.close();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to serialize and read back the splits of a store: one split per
+ * partition, as the job client writes them and the tasks read them, and
+ * a single combined split of all partitions, in the full and the compact
+ * format. Bytes per split are printed once per trial.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KVHiveSplitBenchmark {
+
+    @Param({"1000", "10000"})
+    public int partitions;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private JobConf conf;
+    private KVHiveInputSplit[] splits;
+    private KVHiveCombinedSplit combined;
+    private final DataOutputBuffer out = new DataOutputBuffer();
+    private final DataInputBuffer in = new DataInputBuffer();
+
+    @Setup
+    public void setup() throws IOException {
+        conf = KVHiveBenchData.conf(1, 1, "record");
+        int settingsHash = KVHiveInputSplit.settingsHash(conf);
+        splits = new KVHiveInputSplit[partitions];
+        int[] parts = new int[partitions];
+        for (int i = 0; i < partitions; i++) {
+            splits[i] = KVHiveBenchData.split(i + 1);
+            if (compact) {
+                splits[i].setCompact(settingsHash);
+            }
+            parts[i] = i + 1;
+        }
+        combined = new KVHiveCombinedSplit(KVHiveBenchData.TABLE_PATH);
+        combined.copyFrom(splits[0]);
+        combined.setKVParts(parts);
+        out.reset();
+        for (KVHiveInputSplit split : splits) {
+            split.write(out);
+        }
+        System.out.println("compact=" + compact + ": " + (out.getLength() / partitions) + " bytes per split");
+    }
+
+    @Benchmark
+    public KVHiveInputSplit writeReadSplits() throws IOException {
+        out.reset();
+        for (KVHiveInputSplit split : splits) {
+            split.write(out);
+        }
+        in.reset(out.getData(), out.getLength());
+        KVHiveInputSplit ret = null;
+        for (int i = 0; i < splits.length; i++) {
+            ret = new KVHiveInputSplit();
+            ret.readFields(in);
+            ret.resolve(conf);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public KVHiveCombinedSplit writeReadCombinedSplit() throws IOException {
+        out.reset();
+        combined.write(out);
+        in.reset(out.getData(), out.getLength());
+        KVHiveCombinedSplit ret = new KVHiveCombinedSplit();
+        ret.readFields(in);
+        ret.resolve(conf);
+        return ret;
+    }
+
+}
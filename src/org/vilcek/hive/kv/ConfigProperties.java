@@ -17,6 +17,9 @@
 
 package org.vilcek.hive.kv;
 
+import java.util.concurrent.TimeUnit;
+import oracle.kv.Consistency;
+import oracle.kv.Direction;
 import org.apache.hadoop.conf.Configuration;
 
 /**
@@ -29,6 +32,54 @@ public class ConfigProperties {
     public final static String KV_NAME = "kv.name";
     public final static String KV_MAJOR_KEYS_MAPPING = "kv.major.keys.mapping";
     public final static String KV_MINOR_KEYS_MAPPING = "kv.minor.keys.mapping";
+    public final static String KV_SPLIT_COUNT = "kv.split.count";
+    public final static String KV_SPLIT_TARGET_BYTES = "kv.split.target.bytes";
+    public final static String KV_SPLIT_COMPACT = "kv.split.compact";
+    public final static String KV_SCAN_THREADS = "kv.scan.threads";
+    public final static String KV_SCAN_QUEUE_SIZE = "kv.scan.queue.size";
+    public final static String KV_SCAN_BATCH_SIZE = "kv.scan.batch.size";
+    public final static String KV_PREFETCH_BATCHES = "kv.prefetch.batches";
+    public final static String KV_SCAN_DIRECTION = "kv.scan.direction";
+    public final static String KV_SCAN_CONSISTENCY = "kv.scan.consistency";
+    public final static String KV_SCAN_TIMEOUT = "kv.scan.timeout.ms";
+    public final static String KV_SCAN_BATCH_ADAPTIVE = "kv.scan.batch.adaptive";
+    public final static String KV_SCAN_MEMORY_BUDGET = "kv.scan.memory.budget.bytes";
+    public final static String KV_SCAN_TARGET_LATENCY = "kv.scan.batch.target.ms";
+    public final static String KV_SCAN_RETRIES = "kv.scan.retries";
+    public final static String KV_SCAN_AVOID_MASTER = "kv.scan.avoid.master";
+    public final static String KV_SNAPSHOT_DIR = "kv.snapshot.dir";
+    public final static String KV_SNAPSHOT_TTL = "kv.snapshot.ttl.ms";
+    public final static String KV_SNAPSHOT_EPOCH = "kv.snapshot.epoch";
+    public final static String KV_LOOKUP_BATCH_SIZE = "kv.lookup.batch.size";
+    public final static String KV_LOOKUP_THREADS = "kv.lookup.threads";
+    public final static String KV_LOOKUP_CACHE_SIZE = "kv.lookup.cache.size";
+    public final static String KV_SCAN_RETRY_BACKOFF = "kv.scan.retry.backoff.ms";
+    public final static String KV_TOPOLOGY_CACHE_TTL = "kv.topology.cache.ttl.ms";
+    public final static String KV_PING_TIMEOUT = "kv.ping.timeout.ms";
+    public final static String KV_PING_THREADS = "kv.ping.threads";
+    public final static String KV_STATS_SAMPLE_SIZE = "kv.stats.sample.size";
+    public final static String KV_STATS_THREADS = "kv.stats.threads";
+    public final static String KV_STATS_CACHE_TTL = "kv.stats.cache.ttl.ms";
+    public final static String KV_STATS_MAX_AGE = "kv.stats.max.age.ms";
+    public final static String KV_STORE_POOL_IDLE_TIME = "kv.store.pool.idle.ms";
+    public final static String KV_ROW_MODE = "kv.row.mode";
+    public final static String KV_PIVOT_MAX_RECORDS = "kv.pivot.max.records";
+    public final static String KV_BINARY_COLUMNS = "kv.binary.columns";
+    public final static String KV_VALUE_FORMAT = "kv.value.format";
+    public final static String KV_VALUE_COLUMNS = "kv.value.columns";
+    public final static String KV_VALUE_DELIMITER = "kv.value.delimiter";
+    public final static String KV_VALUE_COMPRESSION = "kv.value.compression";
+    public final static String KV_WRITE_BATCH_SIZE = "kv.write.batch.size";
+    public final static String KV_WRITE_BUFFER_SIZE = "kv.write.buffer.size";
+    public final static String KV_WRITE_THREADS = "kv.write.threads";
+    public final static String KV_WRITE_QUEUE_SIZE = "kv.write.queue.size";
+    
+    public final static String ROW_MODE_RECORD = "record";
+    public final static String ROW_MODE_PIVOT = "pivot";
+    public final static String VALUE_FORMAT_JSON = "json";
+    public final static String VALUE_FORMAT_DELIMITED = "delimited";
+    
+    public final static String DEFAULT_VALUE_DELIMITER = ",";
     
     public static String getKVHostPort(Configuration c) {
         return c.get(KV_HOST_PORT);
@@ -45,5 +96,193 @@ public class ConfigProperties {
     public static String getKVMinorKeys(Configuration c) {
         return c.get(KV_MINOR_KEYS_MAPPING);
     }
+    
+    public static int getKVSplitCount(Configuration c) {
+        return c.getInt(KV_SPLIT_COUNT, 0);
+    }
+    
+    public static long getKVSplitTargetBytes(Configuration c) {
+        return c.getLong(KV_SPLIT_TARGET_BYTES, 0);
+    }
+    
+    public static boolean isKVSplitCompact(Configuration c) {
+        return c.getBoolean(KV_SPLIT_COMPACT, true);
+    }
+
+    public static int getKVScanThreads(Configuration c) {
+        return c.getInt(KV_SCAN_THREADS, 4);
+    }
+    
+    public static int getKVScanQueueSize(Configuration c) {
+        return c.getInt(KV_SCAN_QUEUE_SIZE, 16);
+    }
+    
+    public static int getKVScanBatchSize(Configuration c) {
+        return c.getInt(KV_SCAN_BATCH_SIZE, 0);
+    }
+    
+    public static int getKVPrefetchBatches(Configuration c) {
+        return c.getInt(KV_PREFETCH_BATCHES, 0);
+    }
+    
+    /**
+     * FORWARD or REVERSE: partition scans resume after their last key, and
+     * pivot rows and sub-splits rely on ordered keys, so UNORDERED is refused.
+     */
+    public static Direction getKVScanDirection(Configuration c) {
+        String value = c.get(KV_SCAN_DIRECTION, Direction.FORWARD.name()).trim().toUpperCase();
+        if (value.equals(Direction.FORWARD.name())) {
+            return Direction.FORWARD;
+        } else if (value.equals(Direction.REVERSE.name())) {
+            return Direction.REVERSE;
+        }
+        throw new IllegalArgumentException("Invalid " + KV_SCAN_DIRECTION + ": " + value +
+                                           ", expected FORWARD or REVERSE");
+    }
+    
+    /**
+     * Parses none_required, absolute or time:&lt;permissible lag ms&gt;:&lt;timeout ms&gt;.
+     * Returns null, the store default, if the property is not set.
+     */
+    public static Consistency getKVScanConsistency(Configuration c) {
+        String value = c.get(KV_SCAN_CONSISTENCY);
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        String[] parts = value.trim().toLowerCase().split(":");
+        if (parts[0].equals("none_required")) {
+            return Consistency.NONE_REQUIRED;
+        } else if (parts[0].equals("absolute")) {
+            return Consistency.ABSOLUTE;
+        } else if (parts[0].equals("time") && parts.length == 3) {
+            return new Consistency.Time(Long.parseLong(parts[1]), TimeUnit.MILLISECONDS,
+                                        Long.parseLong(parts[2]), TimeUnit.MILLISECONDS);
+        }
+        throw new IllegalArgumentException("Invalid " + KV_SCAN_CONSISTENCY + ": " + value);
+    }
+    
+    public static long getKVScanTimeout(Configuration c) {
+        return c.getLong(KV_SCAN_TIMEOUT, 0);
+    }
+    
+    public static boolean isKVScanBatchAdaptive(Configuration c) {
+        return c.getBoolean(KV_SCAN_BATCH_ADAPTIVE, false);
+    }
+    
+    public static long getKVScanMemoryBudget(Configuration c) {
+        return c.getLong(KV_SCAN_MEMORY_BUDGET, 8L * 1024 * 1024);
+    }
+    
+    public static long getKVScanTargetLatency(Configuration c) {
+        return c.getLong(KV_SCAN_TARGET_LATENCY, 100);
+    }
+    
+    public static int getKVScanRetries(Configuration c) {
+        return c.getInt(KV_SCAN_RETRIES, 3);
+    }
+    
+    public static long getKVScanRetryBackoff(Configuration c) {
+        return c.getLong(KV_SCAN_RETRY_BACKOFF, 200);
+    }
+    
+    public static boolean isKVScanAvoidMaster(Configuration c) {
+        return c.getBoolean(KV_SCAN_AVOID_MASTER, true);
+    }
+    
+    public static String getKVSnapshotDir(Configuration c) {
+        return c.get(KV_SNAPSHOT_DIR);
+    }
+    
+    public static long getKVSnapshotTTL(Configuration c) {
+        return c.getLong(KV_SNAPSHOT_TTL, 3600000);
+    }
+    
+    public static String getKVSnapshotEpoch(Configuration c) {
+        return c.get(KV_SNAPSHOT_EPOCH, "");
+    }
+    
+    public static int getKVLookupBatchSize(Configuration c) {
+        return c.getInt(KV_LOOKUP_BATCH_SIZE, 1000);
+    }
+    
+    public static int getKVLookupThreads(Configuration c) {
+        return c.getInt(KV_LOOKUP_THREADS, 8);
+    }
+    
+    public static int getKVLookupCacheSize(Configuration c) {
+        return c.getInt(KV_LOOKUP_CACHE_SIZE, 10000);
+    }
+    
+    public static long getKVTopologyCacheTTL(Configuration c) {
+        return c.getLong(KV_TOPOLOGY_CACHE_TTL, 30000);
+    }
+    
+    public static long getKVPingTimeout(Configuration c) {
+        return c.getLong(KV_PING_TIMEOUT, 5000);
+    }
+    
+    public static int getKVPingThreads(Configuration c) {
+        return c.getInt(KV_PING_THREADS, 16);
+    }
+    
+    public static int getKVStatsSampleSize(Configuration c) {
+        return c.getInt(KV_STATS_SAMPLE_SIZE, 100);
+    }
+    
+    public static int getKVStatsThreads(Configuration c) {
+        return c.getInt(KV_STATS_THREADS, 16);
+    }
+    
+    public static long getKVStatsCacheTTL(Configuration c) {
+        return c.getLong(KV_STATS_CACHE_TTL, 600000);
+    }
+    
+    public static long getKVStatsMaxAge(Configuration c) {
+        return c.getLong(KV_STATS_MAX_AGE, 86400000);
+    }
+    
+    public static long getKVStorePoolIdleTime(Configuration c) {
+        return c.getLong(KV_STORE_POOL_IDLE_TIME, 60000);
+    }
+    
+    public static boolean isKVPivotMode(Configuration c) {
+        return ROW_MODE_PIVOT.equalsIgnoreCase(c.get(KV_ROW_MODE, ROW_MODE_RECORD));
+    }
+    
+    public static int getKVPivotMaxRecords(Configuration c) {
+        return c.getInt(KV_PIVOT_MAX_RECORDS, 1000);
+    }
+    
+    public static String getKVValueFormat(Configuration c) {
+        return c.get(KV_VALUE_FORMAT);
+    }
+    
+    public static String getKVValueColumns(Configuration c) {
+        return c.get(KV_VALUE_COLUMNS);
+    }
+    
+    public static String getKVValueDelimiter(Configuration c) {
+        return c.get(KV_VALUE_DELIMITER, DEFAULT_VALUE_DELIMITER);
+    }
+    
+    public static String getKVValueCompression(Configuration c) {
+        return c.get(KV_VALUE_COMPRESSION);
+    }
+    
+    public static int getKVWriteBatchSize(Configuration c) {
+        return c.getInt(KV_WRITE_BATCH_SIZE, 100);
+    }
+    
+    public static int getKVWriteBufferSize(Configuration c) {
+        return c.getInt(KV_WRITE_BUFFER_SIZE, 1000);
+    }
+    
+    public static int getKVWriteThreads(Configuration c) {
+        return c.getInt(KV_WRITE_THREADS, 2);
+    }
+    
+    public static int getKVWriteQueueSize(Configuration c) {
+        return c.getInt(KV_WRITE_QUEUE_SIZE, 16);
+    }
     	
 }
@@ -0,0 +1,109 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Chooses the number of records asked for in each scan request. A fixed
+ * sizer always returns the configured size. An adaptive sizer doubles the
+ * batch while requests come back fast, halves it when they get slow, and
+ * never lets a batch of average sized records grow past its memory budget,
+ * so stores with small values get large batches and stores with large
+ * values get small ones.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveBatchSizer {
+
+    static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int MIN_BATCH_SIZE = 10;
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    private final boolean adaptive;
+    private final long memoryBudget;
+    private final long targetLatencyNanos;
+    private int batchSize;
+    private double avgRecordSize = 0;
+
+    private KVHiveBatchSizer(int initialSize, boolean adaptive,
+                             long memoryBudget, long targetLatencyMs) {
+        this.batchSize = initialSize > 0 ? initialSize : DEFAULT_BATCH_SIZE;
+        this.adaptive = adaptive;
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.targetLatencyNanos = Math.max(1, targetLatencyMs) * 1000000L;
+    }
+
+    public static KVHiveBatchSizer fixed(int batchSize) {
+        return new KVHiveBatchSizer(batchSize, false, Long.MAX_VALUE, Long.MAX_VALUE / 1000000L);
+    }
+
+    public static KVHiveBatchSizer adaptive(int initialSize, long memoryBudget, long targetLatencyMs) {
+        return new KVHiveBatchSizer(initialSize, true, memoryBudget, targetLatencyMs);
+    }
+
+    /**
+     * Builds the sizer of one of nScanners concurrent scans of a task, which
+     * share the task's memory budget.
+     */
+    public static KVHiveBatchSizer fromConf(Configuration c, int batchSize, int nScanners) {
+        if (!ConfigProperties.isKVScanBatchAdaptive(c)) {
+            return fixed(batchSize);
+        }
+        return adaptive(batchSize,
+                        ConfigProperties.getKVScanMemoryBudget(c) / Math.max(1, nScanners),
+                        ConfigProperties.getKVScanTargetLatency(c));
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Feeds back the outcome of one request: number of records and bytes
+     * returned and the time it took.
+     */
+    public void update(int nRecords, long nBytes, long elapsedNanos) {
+        if (!adaptive || nRecords == 0) {
+            return;
+        }
+        double recordSize = (double) nBytes / nRecords;
+        avgRecordSize = (avgRecordSize == 0) ? recordSize : 0.8 * avgRecordSize + 0.2 * recordSize;
+        long next = batchSize;
+        if (nRecords >= batchSize) {
+            // only a full batch tells how fast a bigger one would be
+            if (elapsedNanos < targetLatencyNanos / 2) {
+                next = 2L * batchSize;
+            } else if (elapsedNanos > targetLatencyNanos) {
+                next = batchSize / 2;
+            }
+        } else if (elapsedNanos > targetLatencyNanos) {
+            next = batchSize / 2;
+        }
+        long maxByMemory = (long) (memoryBudget / Math.max(1.0, avgRecordSize));
+        next = Math.min(next, maxByMemory);
+        next = Math.min(next, MAX_BATCH_SIZE);
+        batchSize = (int) Math.max(MIN_BATCH_SIZE, next);
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.nio.charset.CharacterCodingException;
+import org.apache.hadoop.hive.serde.Constants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.lazy.LazyInteger;
+import org.apache.hadoop.hive.serde2.lazy.LazyLong;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Turns the bytes of a column into the Hive writable of its declared type.
+ * Values are either text (the default) or fixed-width big-endian binary:
+ * 4 bytes for int, 8 for bigint and double, 1 for boolean. A value that
+ * cannot be decoded is returned as NULL.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public abstract class KVHiveColumnDecoder {
+
+    /**
+     * Decodes b[start, start+len). The reuse object is the one returned by
+     * the previous call for the same column of the same row, or null.
+     */
+    public abstract Object decode(byte[] b, int start, int len, Object reuse);
+
+    public abstract ObjectInspector getObjectInspector();
+
+    public static KVHiveColumnDecoder forType(String typeName, boolean binary) throws SerDeException {
+        if (typeName.equals(Constants.STRING_TYPE_NAME)) {
+            return STRING;
+        } else if (typeName.equals(Constants.INT_TYPE_NAME)) {
+            return binary ? BINARY_INT : TEXT_INT;
+        } else if (typeName.equals(Constants.BIGINT_TYPE_NAME)) {
+            return binary ? BINARY_BIGINT : TEXT_BIGINT;
+        } else if (typeName.equals(Constants.DOUBLE_TYPE_NAME)) {
+            return binary ? BINARY_DOUBLE : TEXT_DOUBLE;
+        } else if (typeName.equals(Constants.BOOLEAN_TYPE_NAME)) {
+            return binary ? BINARY_BOOLEAN : TEXT_BOOLEAN;
+        }
+        throw new SerDeException("Column type " + typeName + " is not supported by " +
+                                 KVHiveSerDe.class.getName());
+    }
+
+    static final KVHiveColumnDecoder STRING = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            Text t = (reuse == null) ? new Text() : (Text) reuse;
+            t.set(b, start, len);
+            return t;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder TEXT_INT = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            int v;
+            try {
+                v = LazyInteger.parseInt(b, start, len);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            IntWritable w = (reuse == null) ? new IntWritable() : (IntWritable) reuse;
+            w.set(v);
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder BINARY_INT = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            if (len != 4) {
+                return null;
+            }
+            IntWritable w = (reuse == null) ? new IntWritable() : (IntWritable) reuse;
+            w.set(readInt(b, start));
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder TEXT_BIGINT = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            long v;
+            try {
+                v = LazyLong.parseLong(b, start, len);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            LongWritable w = (reuse == null) ? new LongWritable() : (LongWritable) reuse;
+            w.set(v);
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder BINARY_BIGINT = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            if (len != 8) {
+                return null;
+            }
+            LongWritable w = (reuse == null) ? new LongWritable() : (LongWritable) reuse;
+            w.set(readLong(b, start));
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder TEXT_DOUBLE = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            double v;
+            try {
+                v = Double.parseDouble(Text.decode(b, start, len));
+            } catch (NumberFormatException e) {
+                return null;
+            } catch (CharacterCodingException e) {
+                return null;
+            }
+            DoubleWritable w = (reuse == null) ? new DoubleWritable() : (DoubleWritable) reuse;
+            w.set(v);
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder BINARY_DOUBLE = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            if (len != 8) {
+                return null;
+            }
+            DoubleWritable w = (reuse == null) ? new DoubleWritable() : (DoubleWritable) reuse;
+            w.set(Double.longBitsToDouble(readLong(b, start)));
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder TEXT_BOOLEAN = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            boolean v;
+            if (equalsIgnoreCase(TRUE, b, start, len)) {
+                v = true;
+            } else if (equalsIgnoreCase(FALSE, b, start, len)) {
+                v = false;
+            } else {
+                return null;
+            }
+            BooleanWritable w = (reuse == null) ? new BooleanWritable() : (BooleanWritable) reuse;
+            w.set(v);
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableBooleanObjectInspector;
+        }
+    };
+
+    static final KVHiveColumnDecoder BINARY_BOOLEAN = new KVHiveColumnDecoder() {
+        @Override
+        public Object decode(byte[] b, int start, int len, Object reuse) {
+            if (len != 1) {
+                return null;
+            }
+            BooleanWritable w = (reuse == null) ? new BooleanWritable() : (BooleanWritable) reuse;
+            w.set(b[start] != 0);
+            return w;
+        }
+
+        @Override
+        public ObjectInspector getObjectInspector() {
+            return PrimitiveObjectInspectorFactory.writableBooleanObjectInspector;
+        }
+    };
+
+    private static final byte[] TRUE = KVHiveColumnMapping.utf8("true");
+    private static final byte[] FALSE = KVHiveColumnMapping.utf8("false");
+
+    private static boolean equalsIgnoreCase(byte[] lower, byte[] b, int start, int len) {
+        if (len != lower.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            int c = b[start + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lower[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int readInt(byte[] b, int start) {
+        return ((b[start] & 0xff) << 24) |
+               ((b[start + 1] & 0xff) << 16) |
+               ((b[start + 2] & 0xff) << 8) |
+               (b[start + 3] & 0xff);
+    }
+
+    static long readLong(byte[] b, int start) {
+        return ((long) readInt(b, start) << 32) | (readInt(b, start + 4) & 0xffffffffL);
+    }
+
+    static void writeInt(byte[] b, int start, int v) {
+        b[start] = (byte) (v >>> 24);
+        b[start + 1] = (byte) (v >>> 16);
+        b[start + 2] = (byte) (v >>> 8);
+        b[start + 3] = (byte) v;
+    }
+
+    static void writeLong(byte[] b, int start, long v) {
+        writeInt(b, start, (int) (v >>> 32));
+        writeInt(b, start + 4, (int) v);
+    }
+
+}
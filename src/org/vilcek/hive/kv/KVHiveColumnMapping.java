@@ -0,0 +1,246 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Column layout of a KV table: the major key columns in
+ * kv.major.keys.mapping order, followed by the minor key columns of
+ * kv.minor.keys.mapping, or by a single "value" column if there is no
+ * minor key mapping. With a kv.value.format, the "value" column is
+ * replaced by the kv.value.columns, filled from the fields of the value.
+ * Rows written to the store keep the stored layout, with one column per
+ * minor key (see toStorageColumn).
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveColumnMapping {
+
+    public static final String VALUE_COLUMN = "value";
+
+    private final String[] majorKeys;
+    private final String[] minorKeys;
+    private final boolean minorKeysMapped;
+    private final byte[][] minorKeyBytes;
+    private final int[] minorColumns;
+    private final int valueColumn;
+    private final int storageValueColumn;
+    private final KVHiveValueFormat valueFormat;
+    private final int valueFieldCount;
+    private final List<String> columnNames;
+
+    public KVHiveColumnMapping(String majorKeysMapping, String minorKeysMapping) {
+        this(majorKeysMapping, minorKeysMapping, null, null, ConfigProperties.DEFAULT_VALUE_DELIMITER);
+    }
+
+    public KVHiveColumnMapping(String majorKeysMapping, String minorKeysMapping,
+                               String valueFormatName, String valueColumnsMapping, String valueDelimiter) {
+        majorKeys = majorKeysMapping.split(",");
+        minorKeysMapped = (minorKeysMapping != null);
+        if (minorKeysMapped) {
+            minorKeys = minorKeysMapping.split(",");
+        } else {
+            minorKeys = new String[] {VALUE_COLUMN};
+        }
+        minorKeyBytes = new byte[minorKeys.length][];
+        int storageValueCol = -1;
+        for (int i = 0; i < minorKeys.length; i++) {
+            minorKeyBytes[i] = utf8(minorKeys[i]);
+            if (storageValueCol < 0 && minorKeys[i].equals(VALUE_COLUMN)) {
+                storageValueCol = majorKeys.length + i;
+            }
+        }
+        storageValueColumn = storageValueCol;
+        String[] valueColumns = new String[] {VALUE_COLUMN};
+        if (valueFormatName != null) {
+            if (valueColumnsMapping == null) {
+                throw new IllegalArgumentException(ConfigProperties.KV_VALUE_FORMAT + " requires " +
+                                                   ConfigProperties.KV_VALUE_COLUMNS);
+            }
+            if (storageValueCol < 0) {
+                throw new IllegalArgumentException(ConfigProperties.KV_VALUE_FORMAT + " requires a \"" +
+                                                   VALUE_COLUMN + "\" minor key in " +
+                                                   ConfigProperties.KV_MINOR_KEYS_MAPPING);
+            }
+            valueColumns = valueColumnsMapping.split(",");
+            valueFormat = KVHiveValueFormat.forName(valueFormatName, valueColumns, valueDelimiter);
+        } else {
+            valueFormat = null;
+        }
+        valueFieldCount = valueColumns.length;
+        List<String> names = new ArrayList<String>(majorKeys.length + minorKeys.length + valueFieldCount - 1);
+        names.addAll(Arrays.asList(majorKeys));
+        minorColumns = new int[minorKeys.length];
+        int valueCol = -1;
+        for (int i = 0; i < minorKeys.length; i++) {
+            minorColumns[i] = names.size();
+            if (majorKeys.length + i == storageValueCol) {
+                valueCol = names.size();
+                names.addAll(Arrays.asList(valueColumns));
+            } else {
+                names.add(minorKeys[i]);
+            }
+        }
+        valueColumn = valueCol;
+        columnNames = Collections.unmodifiableList(names);
+    }
+
+    public static KVHiveColumnMapping fromConf(Configuration c) {
+        return new KVHiveColumnMapping(ConfigProperties.getKVMajorKeys(c),
+                                       ConfigProperties.getKVMinorKeys(c),
+                                       ConfigProperties.getKVValueFormat(c),
+                                       ConfigProperties.getKVValueColumns(c),
+                                       ConfigProperties.getKVValueDelimiter(c));
+    }
+
+    public static KVHiveColumnMapping fromProperties(Properties p) {
+        return new KVHiveColumnMapping(p.getProperty(ConfigProperties.KV_MAJOR_KEYS_MAPPING),
+                                       p.getProperty(ConfigProperties.KV_MINOR_KEYS_MAPPING),
+                                       p.getProperty(ConfigProperties.KV_VALUE_FORMAT),
+                                       p.getProperty(ConfigProperties.KV_VALUE_COLUMNS),
+                                       p.getProperty(ConfigProperties.KV_VALUE_DELIMITER,
+                                                     ConfigProperties.DEFAULT_VALUE_DELIMITER));
+    }
+
+    public String[] getMajorKeys() {
+        return majorKeys;
+    }
+
+    /**
+     * Checks that kv.binary.columns names no major key column: major key
+     * components are strings, which binary bytes would not survive.
+     */
+    public void checkBinaryColumns(String binaryColumns) {
+        if (binaryColumns == null) {
+            return;
+        }
+        for (String col : binaryColumns.split(",")) {
+            for (String majorKey : majorKeys) {
+                if (majorKey.equalsIgnoreCase(col.trim())) {
+                    throw new IllegalArgumentException("Invalid " + ConfigProperties.KV_BINARY_COLUMNS +
+                                                       ": " + majorKey + " is a major key column, " +
+                                                       "always stored as text");
+                }
+            }
+        }
+    }
+
+    public String[] getMinorKeys() {
+        return minorKeys;
+    }
+
+    /**
+     * False if the table has no minor key mapping, i.e. its only value column
+     * holds the value of keys without a minor path.
+     */
+    public boolean hasMinorKeys() {
+        return minorKeysMapped;
+    }
+
+    public int getFieldCount() {
+        return columnNames.size();
+    }
+
+    /**
+     * Number of columns of a row in the stored layout, one per major and
+     * minor key.
+     */
+    public int getStorageFieldCount() {
+        return majorKeys.length + minorKeys.length;
+    }
+
+    /**
+     * Column of the stored layout that holds column col; all the value
+     * columns are held by the stored value column.
+     */
+    public int toStorageColumn(int col) {
+        if (valueColumn < 0 || col < valueColumn) {
+            return col;
+        }
+        if (col < valueColumn + valueFieldCount) {
+            return storageValueColumn;
+        }
+        return col - valueFieldCount + 1;
+    }
+
+    /**
+     * The format of structured values, or null if the value is a single
+     * column.
+     */
+    public KVHiveValueFormat getValueFormat() {
+        return valueFormat;
+    }
+
+    /**
+     * Number of columns filled from the value, starting at getValueColumn.
+     */
+    public int getValueFieldCount() {
+        return valueFieldCount;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * Column that receives the value of keys without a minor path, or the
+     * first column filled from it, or -1.
+     */
+    public int getValueColumn() {
+        return valueColumn;
+    }
+
+    /**
+     * Column mapped to the minor key component held in b[start, start+len),
+     * or -1 if the component is not mapped.
+     */
+    public int findMinorKeyColumn(byte[] b, int start, int len) {
+        for (int i = 0; i < minorKeyBytes.length; i++) {
+            byte[] name = minorKeyBytes[i];
+            if (name.length == len && regionEquals(name, b, start, len)) {
+                return minorColumns[i];
+            }
+        }
+        return -1;
+    }
+
+    static boolean regionEquals(byte[] a, byte[] b, int start, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A split covering several KV partitions of the same replication group.
+ * The inherited scan settings apply to every member partition.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveCombinedSplit extends KVHiveInputSplit {
+    private int[] kvParts = new int[0];
+
+    public KVHiveCombinedSplit() {
+        super();
+    }
+
+    public KVHiveCombinedSplit(Path dummyPath) {
+        super(dummyPath);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        if (isCompact()) {
+            // sorted, so each partition id is a small delta from the previous
+            int[] sorted = Arrays.copyOf(kvParts, kvParts.length);
+            Arrays.sort(sorted);
+            WritableUtils.writeVInt(out, sorted.length);
+            int prev = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                WritableUtils.writeVInt(out, sorted[i] - prev);
+                prev = sorted[i];
+            }
+            return;
+        }
+        out.writeInt(kvParts.length);
+        for (int i = 0; i < kvParts.length; i++) {
+            out.writeInt(kvParts[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        super.readFields(in);
+        if (isCompact()) {
+            int len = WritableUtils.readVInt(in);
+            kvParts = new int[len];
+            int prev = 0;
+            for (int i = 0; i < len; i++) {
+                prev += WritableUtils.readVInt(in);
+                kvParts[i] = prev;
+            }
+            return;
+        }
+        int len = in.readInt();
+        kvParts = new int[len];
+        for (int i = 0; i < len; i++) {
+            kvParts[i] = in.readInt();
+        }
+    }
+
+    KVHiveCombinedSplit setKVParts(int[] kvParts) {
+        this.kvParts = kvParts;
+        setKVPart(kvParts.length > 0 ? kvParts[0] : 0);
+        return this;
+    }
+
+    int[] getKVParts() {
+        return kvParts;
+    }
+
+}
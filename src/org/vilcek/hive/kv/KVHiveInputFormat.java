@@ -18,116 +18,115 @@
 package org.vilcek.hive.kv;
 
 import java.io.IOException;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import oracle.kv.*;
+import oracle.kv.impl.api.KVStoreImpl;
 import oracle.kv.impl.rep.RepNodeStatus;
-import oracle.kv.impl.rep.admin.RepNodeAdminAPI;
 import oracle.kv.impl.topo.*;
-import oracle.kv.impl.util.TopologyLocator;
-import oracle.kv.impl.util.registry.RegistryUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.io.HiveInputFormat;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.mapred.*;
 
 /**
  *
  * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
  */
-public class KVHiveInputFormat extends HiveInputFormat<LongWritable, MapWritable> {
+public class KVHiveInputFormat extends HiveInputFormat<LongWritable, KVHiveRow> {
     
     private static String kvStoreName;
     private static String[] kvHelperHosts;
     private static Direction direction = Direction.FORWARD;
     private static int batchSize = 0;
-    private static Key parentKey = null;
-    private static KeyRange subRange = null;
     private static Depth depth = Depth.PARENT_AND_DESCENDANTS;
     private static Consistency consistency = null;
     private static long timeout = 0;
     private static TimeUnit timeoutUnit = null;
+    private static boolean avoidMaster = true;
+    
+    private static final int MAX_SUB_SPLITS = 64;
+
+    private static final Log LOG = LogFactory.getLog(KVHiveInputFormat.class);
 
     @Override
     public RecordReader getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
-        return new KVHiveRecordReader(split, job);
+        // a compact split takes the store and scan settings from the task configuration
+        ((KVHiveInputSplit) split).resolve(job);
+        return new KVHiveRecordReader(split, job, reporter);
     }
 
     @Override
     public InputSplit[] getSplits(JobConf conf, int numSplits) throws IOException {
+        long start = System.currentTimeMillis();
         String kvHostPort = conf.get(ConfigProperties.KV_HOST_PORT);
         Pattern pattern = Pattern.compile(",");
         kvHelperHosts = pattern.split(kvHostPort);
         kvStoreName = conf.get(ConfigProperties.KV_NAME);
+        batchSize = ConfigProperties.getKVScanBatchSize(conf);
+        direction = ConfigProperties.getKVScanDirection(conf);
+        consistency = ConfigProperties.getKVScanConsistency(conf);
+        timeout = ConfigProperties.getKVScanTimeout(conf);
+        timeoutUnit = (timeout > 0) ? TimeUnit.MILLISECONDS : null;
+        avoidMaster = ConfigProperties.isKVScanAvoidMaster(conf);
+        String[] majorKeys = pattern.split(ConfigProperties.getKVMajorKeys(conf));
+        KVHiveKeyPredicate keyPredicate = KVHiveKeyPredicate.fromConf(conf, majorKeys);
+        Key parentKey = keyPredicate.getParentKey();
+        KeyRange subRange = keyPredicate.getSubRange();
         
         Topology topology = null;
+        KVHiveTopologyCache.Entry topologyEntry = null;
         try {
-            topology = TopologyLocator.get(kvHelperHosts, 0);
+            topologyEntry = KVHiveTopologyCache.get(kvStoreName, kvHelperHosts,
+                                                    ConfigProperties.getKVTopologyCacheTTL(conf),
+                                                    ConfigProperties.getKVPingTimeout(conf),
+                                                    ConfigProperties.getKVPingThreads(conf));
+            topology = topologyEntry.getTopology();
         } catch (KVStoreException KVSE) {
             KVSE.printStackTrace();
             return null;
         }
-        RegistryUtils regUtils = new RegistryUtils(topology);
+        long topologyMs = System.currentTimeMillis() - start;
         PartitionMap partitionMap = topology.getPartitionMap();
         int nParts = partitionMap.getNPartitions();
-        List<InputSplit> ret = new ArrayList<InputSplit>(nParts);
-        for (int i = 1; i <= nParts; i++) {
+        List<Integer> partIds = new ArrayList<Integer>(nParts);
+        if (keyPredicate.isFullMajorKey()) {
+            // the whole major path is known, so only its partition holds data
+            partIds.add(topology.getPartitionId(parentKey.toByteArray()).getPartitionId());
+        } else {
+            for (int i = 1; i <= nParts; i++) {
+                partIds.add(i);
+            }
+        }
+        Path[] tablePaths = FileInputFormat.getInputPaths(conf);
+        List<KVHiveInputSplit> ret = new ArrayList<KVHiveInputSplit>(partIds.size());
+        List<RepGroupId> repGroupIds = new ArrayList<RepGroupId>(partIds.size());
+        Map<RepGroupId, String[][]> repGroupHosts = new HashMap<RepGroupId, String[][]>();
+        for (int i : partIds) {
             PartitionId partId = new PartitionId(i);
             RepGroupId repGroupId = topology.getRepGroupId(partId);
-            RepGroup repGroup = topology.get(repGroupId);
-            Collection<RepNode> repNodes = repGroup.getRepNodes();
-            List<String> repNodeNames = new ArrayList<String>();
-            List<String> repNodeNamesAndPorts = new ArrayList<String>();
-            for (RepNode rn : repNodes) {
-                RepNodeStatus rnStatus = null;
-                try {
-                    RepNodeAdminAPI rna =
-                        regUtils.getRepNodeAdmin(rn.getResourceId());
-                    rnStatus = rna.ping();
-                } catch (RemoteException re) {
-                    System.err.println("Ping failed for " +
-                                       rn.getResourceId() + ": " +
-                                       re.getMessage());
-                    re.printStackTrace();
-                } catch (NotBoundException e) {
-                    System.err.println("No RMI service for RN: " +
-                                       rn.getResourceId() +
-                                       " message: " + e.getMessage());
-                }
-
-                if (rnStatus == null) {
-                    continue;
-                }
-                
-                /*
-                com.sleepycat.je.rep.ReplicatedEnvironment.State state = rnStatus.getReplicationState();
-                if (!state.isActive() ||
-                    (consistency == Consistency.ABSOLUTE &&
-                     !state.isMaster())) {
-                    continue;
-                }
-                */
-                
-                StorageNodeId snid = rn.getStorageNodeId();
-                StorageNode sn = topology.get(snid);
-
-                repNodeNames.add(sn.getHostname());
-                repNodeNamesAndPorts.add(sn.getHostname() + ":" +
-                                         sn.getRegistryPort());
+            repGroupIds.add(repGroupId);
+            String[][] hosts = repGroupHosts.get(repGroupId);
+            if (hosts == null) {
+                hosts = getRepGroupHosts(topologyEntry, repGroupId);
+                repGroupHosts.put(repGroupId, hosts);
             }
-            Path[] tablePaths = FileInputFormat.getInputPaths(conf);
             ret.add(new KVHiveInputSplit(tablePaths[0]).
-                    setKVHelperHosts
-                    (repNodeNamesAndPorts.toArray(new String[0])).
+                    setKVHelperHosts(hosts[1]).
                     setKVStoreName(kvStoreName).
                     setKVPart(i).
-                    setLocations(repNodeNames.toArray(new String[0])).
+                    setLocations(hosts[0]).
                     setDirection(direction).
                     setBatchSize(batchSize).
                     setParentKey(parentKey).
@@ -139,7 +138,313 @@ public class KVHiveInputFormat extends HiveInputFormat<LongWritable, MapWritable
             
         }
 
+        int sampleSize = ConfigProperties.getKVStatsSampleSize(conf);
+        long targetBytes = ConfigProperties.getKVSplitTargetBytes(conf);
+        long[][] collected = KVHiveTableStats.getPartitionSizes(conf, nParts);
+        long estimateStart = System.currentTimeMillis();
+        KVHivePartitionStats.Estimate[] estimates = null;
+        // sizes of whole partitions do not fit scans bounded by key
+        // conditions, and sampling would cost more than such scans
+        boolean wholePartitions = parentKey == null && subRange == null;
+        if (wholePartitions && collected != null && targetBytes <= 0) {
+            // sizes collected by KVHiveTableStats, no sampling needed
+            for (KVHiveInputSplit split : ret) {
+                split.setEstimate(collected[0][split.getKVPart() - 1],
+                                  collected[1][split.getKVPart() - 1]);
+            }
+        } else if (wholePartitions && sampleSize > 0) {
+            estimates = estimateSizes(ret, sampleSize, conf);
+        }
+        long estimateMs = System.currentTimeMillis() - estimateStart;
+
+        List<KVHiveInputSplit> subSplits = new ArrayList<KVHiveInputSplit>();
+        if (estimates != null && targetBytes > 0) {
+            // cut oversized partitions into key ranges of the first major key
+            for (int i = ret.size() - 1; i >= 0; i--) {
+                KVHiveInputSplit split = ret.get(i);
+                if (estimates[i] == null || split.getEstimatedBytes() <= targetBytes) {
+                    continue;
+                }
+                int n = (int) Math.min(MAX_SUB_SPLITS,
+                                       (split.getEstimatedBytes() + targetBytes - 1) / targetBytes);
+                String[] bounds = estimates[i].getBoundaries(n);
+                if (bounds.length == 0) {
+                    continue;
+                }
+                subSplits.addAll(subSplit(split, bounds, tablePaths[0]));
+                ret.remove(i);
+                repGroupIds.remove(i);
+            }
+        }
+
+        int splitCount = ConfigProperties.getKVSplitCount(conf);
+        if (splitCount > 0 && splitCount < ret.size()) {
+            ret = combineSplits(ret, repGroupIds, splitCount, tablePaths[0]);
+        }
+        ret.addAll(subSplits);
+        if (ConfigProperties.isKVSplitCompact(conf)) {
+            // settings shared by all splits are read back from the table properties
+            int settingsHash = KVHiveInputSplit.settingsHash(conf);
+            for (KVHiveInputSplit split : ret) {
+                split.setCompact(settingsHash);
+            }
+        }
+
+        // largest first, so that the longest scans start early
+        Collections.sort(ret, new Comparator<KVHiveInputSplit>() {
+            @Override
+            public int compare(KVHiveInputSplit a, KVHiveInputSplit b) {
+                long la = a.getLength();
+                long lb = b.getLength();
+                return la > lb ? -1 : (la < lb ? 1 : 0);
+            }
+        });
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Generated " + ret.size() + " splits over " + partIds.size() + " partitions in " +
+                     (System.currentTimeMillis() - start) + " ms (topology " + topologyMs +
+                     " ms, size estimates " + estimateMs + " ms)");
+        }
         return ret.toArray(new InputSplit[ret.size()]);
     }
     
+    /**
+     * Splits one partition into bounds.length + 1 splits over consecutive
+     * ranges of the first major key component, sharing the estimated size of
+     * the partition evenly.
+     */
+    private List<KVHiveInputSplit> subSplit(KVHiveInputSplit split, String[] bounds, Path tablePath) {
+        int n = bounds.length + 1;
+        List<KVHiveInputSplit> ret = new ArrayList<KVHiveInputSplit>(n);
+        for (int i = 0; i < n; i++) {
+            KeyRange range = new KeyRange(i == 0 ? null : bounds[i - 1], true,
+                                          i == n - 1 ? null : bounds[i], false);
+            ret.add(new KVHiveInputSplit(tablePath).
+                    copyFrom(split).
+                    setSubRange(range).
+                    setEstimate(split.getEstimatedRecords() / n, split.getEstimatedBytes() / n));
+        }
+        return ret;
+    }
+    
+    /**
+     * Sets the sampled record count and size of every single-partition split
+     * and returns the estimates, or null if the store can not be sampled.
+     */
+    private KVHivePartitionStats.Estimate[] estimateSizes(List<KVHiveInputSplit> splits,
+                                                          int sampleSize, JobConf conf) {
+        int[] parts = new int[splits.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = splits.get(i).getKVPart();
+        }
+        KVStore kvstore = KVHiveStorePool.acquire(kvStoreName, kvHelperHosts,
+                                                  ConfigProperties.getKVStorePoolIdleTime(conf));
+        try {
+            KVHivePartitionStats.Estimate[] estimates =
+                KVHivePartitionStats.get((KVStoreImpl) kvstore, kvStoreName, kvHelperHosts, parts,
+                                         sampleSize,
+                                         ConfigProperties.getKVStatsThreads(conf),
+                                         ConfigProperties.getKVStatsCacheTTL(conf));
+            for (int i = 0; i < parts.length; i++) {
+                if (estimates[i] != null) {
+                    splits.get(i).setEstimate(estimates[i].getRecords(), estimates[i].getBytes());
+                }
+            }
+            return estimates;
+        } catch (FaultException FE) {
+            FE.printStackTrace();
+            return null;
+        } finally {
+            KVHiveStorePool.release(kvstore);
+        }
+    }
+    
+    /**
+     * Returns the host names the splits of a replication group should run
+     * on, and the host:port pairs of its live RepNodes, based on the cached
+     * ping results. The splits go to the master if the consistency requires
+     * it, and to the replicas if the master is to be avoided and a replica
+     * is up; otherwise any master or replica will do. If none of these is
+     * known, as during an election, the splits may go to any live RepNode.
+     */
+    private String[][] getRepGroupHosts(KVHiveTopologyCache.Entry topologyEntry,
+                                        RepGroupId repGroupId) {
+        Topology topology = topologyEntry.getTopology();
+        RepGroup repGroup = topology.get(repGroupId);
+        Collection<RepNode> repNodes = repGroup.getRepNodes();
+        List<String> liveNames = new ArrayList<String>();
+        List<String> repNodeNames = new ArrayList<String>();
+        List<String> masterNames = new ArrayList<String>();
+        List<String> replicaNames = new ArrayList<String>();
+        List<String> repNodeNamesAndPorts = new ArrayList<String>();
+        for (RepNode rn : repNodes) {
+            RepNodeStatus rnStatus = topologyEntry.getStatus(rn.getResourceId());
+            if (rnStatus == null) {
+                continue;
+            }
+
+            StorageNodeId snid = rn.getStorageNodeId();
+            StorageNode sn = topology.get(snid);
+
+            // every live RepNode can serve as a helper host, whatever its state
+            liveNames.add(sn.getHostname());
+            repNodeNamesAndPorts.add(sn.getHostname() + ":" +
+                                     sn.getRegistryPort());
+
+            String state = KVHiveTopologyCache.getReplicationState(rnStatus);
+            if ("MASTER".equals(state)) {
+                repNodeNames.add(sn.getHostname());
+                masterNames.add(sn.getHostname());
+            } else if ("REPLICA".equals(state)) {
+                repNodeNames.add(sn.getHostname());
+                replicaNames.add(sn.getHostname());
+            }
+        }
+        List<String> locations = repNodeNames;
+        if (!KVHivePartitionIterator.allowsReplicas(consistency)) {
+            locations = masterNames;
+        } else if (avoidMaster && !replicaNames.isEmpty()) {
+            locations = replicaNames;
+        }
+        if (locations.isEmpty()) {
+            locations = liveNames;
+        }
+        return new String[][] {locations.toArray(new String[0]),
+                               repNodeNamesAndPorts.toArray(new String[0])};
+    }
+    
+    /**
+     * Groups single-partition splits of the same replication group into at
+     * most splitCount combined splits, giving each group a share of the
+     * target count proportional to its number of partitions. With fewer
+     * splits than groups, whole groups share a split, which then runs away
+     * from some of its data. Within a group, partitions are dealt largest
+     * first to the combined split with the fewest estimated bytes, so that
+     * combined splits come out about the same size.
+     */
+    private List<KVHiveInputSplit> combineSplits(List<KVHiveInputSplit> splits,
+                                                 List<RepGroupId> repGroupIds,
+                                                 int splitCount,
+                                                 Path tablePath) {
+        Map<RepGroupId, List<KVHiveInputSplit>> groups =
+            new LinkedHashMap<RepGroupId, List<KVHiveInputSplit>>();
+        for (int i = 0; i < splits.size(); i++) {
+            List<KVHiveInputSplit> members = groups.get(repGroupIds.get(i));
+            if (members == null) {
+                members = new ArrayList<KVHiveInputSplit>();
+                groups.put(repGroupIds.get(i), members);
+            }
+            members.add(splits.get(i));
+        }
+        List<List<KVHiveInputSplit>> groupList = new ArrayList<List<KVHiveInputSplit>>(groups.values());
+        if (splitCount < groupList.size()) {
+            groupList = mergeGroups(groupList, splitCount);
+        }
+        // one split per group, then the rest to the group with the most
+        // partitions per split
+        int[] groupSplits = new int[groupList.size()];
+        Arrays.fill(groupSplits, 1);
+        for (int n = groupList.size(); n < splitCount; n++) {
+            int target = -1;
+            for (int g = 0; g < groupList.size(); g++) {
+                int size = groupList.get(g).size();
+                if (groupSplits[g] < size &&
+                    (target < 0 || (long) size * groupSplits[target] >
+                                   (long) groupList.get(target).size() * groupSplits[g])) {
+                    target = g;
+                }
+            }
+            if (target < 0) {
+                break;
+            }
+            groupSplits[target]++;
+        }
+        List<KVHiveInputSplit> ret = new ArrayList<KVHiveInputSplit>(splitCount);
+        for (int g = 0; g < groupList.size(); g++) {
+            List<KVHiveInputSplit> members = groupList.get(g);
+            int nGroupSplits = groupSplits[g];
+            List<KVHiveInputSplit> sorted = new ArrayList<KVHiveInputSplit>(members);
+            Collections.sort(sorted, new Comparator<KVHiveInputSplit>() {
+                @Override
+                public int compare(KVHiveInputSplit a, KVHiveInputSplit b) {
+                    long la = a.getEstimatedBytes();
+                    long lb = b.getEstimatedBytes();
+                    return la > lb ? -1 : (la < lb ? 1 : 0);
+                }
+            });
+            List<List<KVHiveInputSplit>> bins = new ArrayList<List<KVHiveInputSplit>>(nGroupSplits);
+            long[] binBytes = new long[nGroupSplits];
+            for (int b = 0; b < nGroupSplits; b++) {
+                bins.add(new ArrayList<KVHiveInputSplit>());
+            }
+            for (KVHiveInputSplit member : sorted) {
+                int target = 0;
+                for (int b = 1; b < nGroupSplits; b++) {
+                    if (binBytes[b] < binBytes[target] ||
+                        (binBytes[b] == binBytes[target] && bins.get(b).size() < bins.get(target).size())) {
+                        target = b;
+                    }
+                }
+                bins.get(target).add(member);
+                binBytes[target] += member.getEstimatedBytes();
+            }
+            for (List<KVHiveInputSplit> bin : bins) {
+                int[] parts = new int[bin.size()];
+                long records = 0;
+                long bytes = 0;
+                for (int j = 0; j < bin.size(); j++) {
+                    parts[j] = bin.get(j).getKVPart();
+                    records += bin.get(j).getEstimatedRecords();
+                    bytes += bin.get(j).getEstimatedBytes();
+                }
+                KVHiveCombinedSplit combined = new KVHiveCombinedSplit(tablePath);
+                combined.copyFrom(bin.get(0));
+                combined.setEstimate(records, bytes);
+                ret.add(combined.setKVParts(parts));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Deals whole groups, largest first, into n groups of about the same
+     * number of estimated bytes.
+     */
+    private static List<List<KVHiveInputSplit>> mergeGroups(List<List<KVHiveInputSplit>> groups, int n) {
+        List<List<KVHiveInputSplit>> sorted = new ArrayList<List<KVHiveInputSplit>>(groups);
+        Collections.sort(sorted, new Comparator<List<KVHiveInputSplit>>() {
+            @Override
+            public int compare(List<KVHiveInputSplit> a, List<KVHiveInputSplit> b) {
+                long la = estimatedBytes(a);
+                long lb = estimatedBytes(b);
+                return la > lb ? -1 : (la < lb ? 1 : b.size() - a.size());
+            }
+        });
+        List<List<KVHiveInputSplit>> ret = new ArrayList<List<KVHiveInputSplit>>(n);
+        long[] retBytes = new long[n];
+        for (int i = 0; i < n; i++) {
+            ret.add(new ArrayList<KVHiveInputSplit>());
+        }
+        for (List<KVHiveInputSplit> group : sorted) {
+            int target = 0;
+            for (int i = 1; i < n; i++) {
+                if (retBytes[i] < retBytes[target] ||
+                    (retBytes[i] == retBytes[target] && ret.get(i).size() < ret.get(target).size())) {
+                    target = i;
+                }
+            }
+            ret.get(target).addAll(group);
+            retBytes[target] += estimatedBytes(group);
+        }
+        return ret;
+    }
+
+    private static long estimatedBytes(List<KVHiveInputSplit> splits) {
+        long ret = 0;
+        for (KVHiveInputSplit split : splits) {
+            ret += split.getEstimatedBytes();
+        }
+        return ret;
+    }
+    
 }
@@ -20,14 +20,22 @@ package org.vilcek.hive.kv;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import oracle.kv.*;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.InputSplit;
 
 /**
+ * A scan over one KV partition. In the compact format the store name,
+ * helper hosts and scan options are left out and taken back from the
+ * table properties in the task configuration (see resolve); only the
+ * partition id, the key bounds and the size estimate are written, and
+ * the locations, which only the job client uses, are dropped.
  *
  * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
  */
@@ -44,9 +52,18 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
     private long timeout;
     private TimeUnit timeoutUnit;
     private String[] locations = new String[0];
+    private long estimatedRecords = 0;
+    private long estimatedBytes = 0;
+    private boolean compact = false;
+    private int settingsHash = 0;
     
     private static final String[] EMPTY_ARRAY = new String[] {};
     
+    private static final byte FORMAT_FULL = 0;
+    private static final byte FORMAT_COMPACT = 1;
+    private static final int HAS_PARENT_KEY = 1;
+    private static final int HAS_SUB_RANGE = 2;
+    
     public KVHiveInputSplit() {
         super((Path) null, 0, 0, EMPTY_ARRAY);
     }
@@ -55,9 +72,12 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
         super(dummyPath, 0, 0, EMPTY_ARRAY);
     }
 
+    /**
+     * Estimated number of bytes in the split, or 1 if unknown.
+     */
     @Override
     public long getLength() {
-        return 1;
+        return Math.max(1, estimatedBytes);
     }
 
     @Override
@@ -68,6 +88,12 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
     @Override
     public void write(DataOutput out) throws IOException {
         super.write(out);
+        if (compact) {
+            out.writeByte(FORMAT_COMPACT);
+            writeCompact(out);
+            return;
+        }
+        out.writeByte(FORMAT_FULL);
         out.writeInt(kvHelperHosts.length);
         for (int i = 0; i < kvHelperHosts.length; i++) {
             Text.writeString(out, kvHelperHosts[i]);
@@ -88,11 +114,35 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
         for (int i = 0; i < locations.length; i++) {
             Text.writeString(out, locations[i]);
         }
+        out.writeLong(estimatedRecords);
+        out.writeLong(estimatedBytes);
+    }
+
+    private void writeCompact(DataOutput out) throws IOException {
+        out.writeInt(settingsHash);
+        WritableUtils.writeVInt(out, kvPart);
+        int flags = (parentKey == null ? 0 : HAS_PARENT_KEY) |
+                    (subRange == null ? 0 : HAS_SUB_RANGE);
+        // the depth ordinal goes above the flag bits
+        WritableUtils.writeVInt(out, flags | ((depth == null ? 0 : depth.ordinal() + 1) << 2));
+        if (parentKey != null) {
+            writeVBytes(out, parentKey.toByteArray());
+        }
+        if (subRange != null) {
+            writeVBytes(out, subRange.toByteArray());
+        }
+        WritableUtils.writeVLong(out, estimatedRecords);
+        WritableUtils.writeVLong(out, estimatedBytes);
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
         super.readFields(in);
+        if (in.readByte() == FORMAT_COMPACT) {
+            readCompact(in);
+            return;
+        }
+        compact = false;
         int nHelperHosts = in.readInt();
         kvHelperHosts = new String[nHelperHosts];
         for (int i = 0; i < nHelperHosts; i++) {
@@ -152,6 +202,64 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
         for (int i = 0; i < len; i++) {
             locations[i] = Text.readString(in);
         }
+        estimatedRecords = in.readLong();
+        estimatedBytes = in.readLong();
+    }
+
+    private void readCompact(DataInput in) throws IOException {
+        compact = true;
+        settingsHash = in.readInt();
+        kvPart = WritableUtils.readVInt(in);
+        int flags = WritableUtils.readVInt(in);
+        int depthOrdinal = flags >> 2;
+        depth = (depthOrdinal == 0 ? null : Depth.values()[depthOrdinal - 1]);
+        parentKey = ((flags & HAS_PARENT_KEY) == 0 ? null : Key.fromByteArray(readVBytes(in)));
+        subRange = ((flags & HAS_SUB_RANGE) == 0 ? null : KeyRange.fromByteArray(readVBytes(in)));
+        estimatedRecords = WritableUtils.readVLong(in);
+        estimatedBytes = WritableUtils.readVLong(in);
+        // filled in by resolve
+        kvStore = null;
+        kvHelperHosts = null;
+        locations = EMPTY_ARRAY;
+    }
+
+    /**
+     * Takes the settings left out of a compact split from the table
+     * properties in the task configuration. Does nothing for a split in the
+     * full format or one that is already resolved.
+     */
+    KVHiveInputSplit resolve(Configuration conf) throws IOException {
+        if (!compact || kvStore != null) {
+            return this;
+        }
+        if (settingsHash(conf) != settingsHash) {
+            throw new IOException("The scan settings in the task configuration differ from the ones " +
+                                  "the splits were generated with, set " +
+                                  ConfigProperties.KV_SPLIT_COMPACT + " to false");
+        }
+        kvStore = ConfigProperties.getKVName(conf);
+        kvHelperHosts = ConfigProperties.getKVHostPort(conf).split(",");
+        direction = ConfigProperties.getKVScanDirection(conf);
+        batchSize = ConfigProperties.getKVScanBatchSize(conf);
+        consistency = ConfigProperties.getKVScanConsistency(conf);
+        timeout = ConfigProperties.getKVScanTimeout(conf);
+        timeoutUnit = (timeout > 0) ? TimeUnit.MILLISECONDS : null;
+        return this;
+    }
+
+    /**
+     * Hash of the properties that a compact split takes from the
+     * configuration, to catch splits read with the settings of another table.
+     */
+    static int settingsHash(Configuration conf) {
+        return Arrays.hashCode(new String[] {
+            conf.get(ConfigProperties.KV_NAME),
+            conf.get(ConfigProperties.KV_HOST_PORT),
+            conf.get(ConfigProperties.KV_SCAN_DIRECTION),
+            conf.get(ConfigProperties.KV_SCAN_BATCH_SIZE),
+            conf.get(ConfigProperties.KV_SCAN_CONSISTENCY),
+            conf.get(ConfigProperties.KV_SCAN_TIMEOUT)
+        });
     }
     
     private void writeBytes(DataOutput out, byte[] bytes) throws IOException {
@@ -163,6 +271,17 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
         out.write(bytes);
     }
     
+    private static void writeVBytes(DataOutput out, byte[] bytes) throws IOException {
+        WritableUtils.writeVInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readVBytes(DataInput in) throws IOException {
+        byte[] ret = new byte[WritableUtils.readVInt(in)];
+        in.readFully(ret);
+        return ret;
+    }
+    
     private byte[] readBytes(DataInput in) throws IOException {
         int len = in.readInt();
         if (len == 0) {
@@ -174,6 +293,40 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
         return ret;
     }
     
+    KVHiveInputSplit copyFrom(KVHiveInputSplit other) {
+        kvStore = other.kvStore;
+        kvHelperHosts = other.kvHelperHosts;
+        kvPart = other.kvPart;
+        direction = other.direction;
+        batchSize = other.batchSize;
+        parentKey = other.parentKey;
+        subRange = other.subRange;
+        depth = other.depth;
+        consistency = other.consistency;
+        timeout = other.timeout;
+        timeoutUnit = other.timeoutUnit;
+        locations = other.locations;
+        estimatedRecords = other.estimatedRecords;
+        estimatedBytes = other.estimatedBytes;
+        compact = other.compact;
+        settingsHash = other.settingsHash;
+        return this;
+    }
+
+    /**
+     * Switches the split to the compact format; settingsHash is the
+     * settingsHash of the configuration the split was generated from.
+     */
+    KVHiveInputSplit setCompact(int settingsHash) {
+        this.compact = true;
+        this.settingsHash = settingsHash;
+        return this;
+    }
+
+    boolean isCompact() {
+        return compact;
+    }
+    
      KVHiveInputSplit setLocations(String[] locations) {
         this.locations = locations;
         return this;
@@ -269,6 +422,23 @@ public class KVHiveInputSplit extends FileSplit implements InputSplit {
         return kvStore;
     }
 
+    KVHiveInputSplit setEstimate(long estimatedRecords, long estimatedBytes) {
+        this.estimatedRecords = estimatedRecords;
+        this.estimatedBytes = estimatedBytes;
+        return this;
+    }
+
+    /**
+     * Estimated number of records in the split, or 0 if unknown.
+     */
+    long getEstimatedRecords() {
+        return estimatedRecords;
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
     KVHiveInputSplit setKVPart(int kvPart) {
         this.kvPart = kvPart;
         return this;
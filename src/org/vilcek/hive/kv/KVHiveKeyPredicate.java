@@ -0,0 +1,315 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.metadata.HiveStoragePredicateHandler.DecomposedPredicate;
+import org.apache.hadoop.hive.ql.plan.ExprNodeColumnDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.ql.udf.UDFLike;
+import org.apache.hadoop.hive.ql.udf.generic.*;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.NullWritable;
+
+/**
+ * Translates Hive filter expressions on the major key columns into a
+ * parent Key plus a KeyRange on the next major key component.
+ * Equality on a leading run of major key columns becomes the parent key;
+ * an equality, prefix (LIKE 'abc%') or range condition on the column right
+ * after that run becomes the sub range. Range and prefix conditions are
+ * also left to Hive, as is everything else.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveKeyPredicate {
+
+    private static final int OP_EQ = 0;
+    private static final int OP_LT = 1;
+    private static final int OP_LE = 2;
+    private static final int OP_GT = 3;
+    private static final int OP_GE = 4;
+    private static final int OP_PREFIX = 5;
+
+    private static final String SERIALIZED_NULL = NullWritable.get().toString();
+
+    private final int majorKeyCount;
+    private final List<String> parentPath = new ArrayList<String>();
+    private KeyRange subRange = null;
+    private final List<ExprNodeDesc> pushed = new ArrayList<ExprNodeDesc>();
+    private final List<ExprNodeDesc> residual = new ArrayList<ExprNodeDesc>();
+
+    private KVHiveKeyPredicate(String[] majorKeys, ExprNodeDesc predicate) {
+        majorKeyCount = majorKeys.length;
+        if (predicate != null) {
+            analyze(majorKeys, predicate);
+        }
+    }
+
+    /**
+     * Splits a filter into the part enforced by the KV scan and the residual
+     * that Hive still has to evaluate.
+     */
+    public static DecomposedPredicate decompose(String[] majorKeys, ExprNodeDesc predicate) {
+        KVHiveKeyPredicate kp = new KVHiveKeyPredicate(majorKeys, predicate);
+        if (kp.pushed.isEmpty()) {
+            return null;
+        }
+        DecomposedPredicate ret = new DecomposedPredicate();
+        ret.pushedPredicate = conjunction(kp.pushed);
+        ret.residualPredicate = conjunction(kp.residual);
+        return ret;
+    }
+
+    /**
+     * Rebuilds the key bounds from the filter that Hive pushed into the job.
+     */
+    public static KVHiveKeyPredicate fromConf(Configuration conf, String[] majorKeys) {
+        String filterExprSerialized = conf.get(TableScanDesc.FILTER_EXPR_CONF_STR);
+        ExprNodeDesc predicate = null;
+        if (filterExprSerialized != null) {
+            predicate = Utilities.deserializeExpression(filterExprSerialized, conf);
+        }
+        return new KVHiveKeyPredicate(majorKeys, predicate);
+    }
+
+    public Key getParentKey() {
+        return parentPath.isEmpty() ? null : Key.createKey(parentPath);
+    }
+
+    public KeyRange getSubRange() {
+        return subRange;
+    }
+
+    public List<String> getParentPath() {
+        return Collections.unmodifiableList(parentPath);
+    }
+
+    public boolean isFullMajorKey() {
+        return parentPath.size() == majorKeyCount;
+    }
+
+    private void analyze(String[] majorKeys, ExprNodeDesc predicate) {
+        List<ExprNodeDesc> conjuncts = new ArrayList<ExprNodeDesc>();
+        flatten(predicate, conjuncts);
+
+        int n = majorKeys.length;
+        ExprNodeDesc[] eq = new ExprNodeDesc[n];
+        String[] eqValue = new String[n];
+        ExprNodeDesc[] prefix = new ExprNodeDesc[n];
+        String[] prefixValue = new String[n];
+        ExprNodeDesc[] lower = new ExprNodeDesc[n];
+        String[] lowerValue = new String[n];
+        boolean[] lowerInclusive = new boolean[n];
+        ExprNodeDesc[] upper = new ExprNodeDesc[n];
+        String[] upperValue = new String[n];
+        boolean[] upperInclusive = new boolean[n];
+
+        List<ExprNodeDesc> unused = new ArrayList<ExprNodeDesc>();
+        for (ExprNodeDesc expr : conjuncts) {
+            Object[] cond = toCondition(majorKeys, expr);
+            if (cond == null) {
+                unused.add(expr);
+                continue;
+            }
+            int col = (Integer) cond[0];
+            int op = (Integer) cond[1];
+            String value = (String) cond[2];
+            if (op == OP_EQ && eq[col] == null) {
+                eq[col] = expr;
+                eqValue[col] = value;
+            } else if (op == OP_PREFIX && prefix[col] == null) {
+                prefix[col] = expr;
+                prefixValue[col] = value;
+            } else if ((op == OP_GT || op == OP_GE) && lower[col] == null) {
+                lower[col] = expr;
+                lowerValue[col] = value;
+                lowerInclusive[col] = (op == OP_GE);
+            } else if ((op == OP_LT || op == OP_LE) && upper[col] == null) {
+                upper[col] = expr;
+                upperValue[col] = value;
+                upperInclusive[col] = (op == OP_LE);
+            } else {
+                unused.add(expr);
+            }
+        }
+
+        int i = 0;
+        while (i < n && eq[i] != null && !eqValue[i].equals(SERIALIZED_NULL)) {
+            parentPath.add(eqValue[i]);
+            pushed.add(eq[i]);
+            eq[i] = null;
+            i++;
+        }
+        // a NULL key component is stored as "(null)", which can fall inside
+        // the sub range, so range and prefix conditions are pushed for the
+        // scan bounds but still evaluated by Hive
+        if (i < n) {
+            if (prefix[i] != null) {
+                subRange = new KeyRange(prefixValue[i]);
+                pushed.add(prefix[i]);
+            } else if (lower[i] != null || upper[i] != null) {
+                try {
+                    subRange = new KeyRange(lowerValue[i], lowerInclusive[i],
+                                            upperValue[i], upperInclusive[i]);
+                } catch (IllegalArgumentException e) {
+                    // inverted range, let Hive evaluate it
+                    subRange = null;
+                }
+                if (subRange != null && lower[i] != null) {
+                    pushed.add(lower[i]);
+                }
+                if (subRange != null && upper[i] != null) {
+                    pushed.add(upper[i]);
+                }
+            }
+        }
+
+        for (int j = 0; j < n; j++) {
+            addIfPresent(residual, eq[j]);
+            addIfPresent(residual, prefix[j]);
+            addIfPresent(residual, lower[j]);
+            addIfPresent(residual, upper[j]);
+        }
+        residual.addAll(unused);
+    }
+
+    private static void addIfPresent(List<ExprNodeDesc> list, ExprNodeDesc expr) {
+        if (expr != null) {
+            list.add(expr);
+        }
+    }
+
+    private static void flatten(ExprNodeDesc expr, List<ExprNodeDesc> conjuncts) {
+        if (expr instanceof ExprNodeGenericFuncDesc
+                && ((ExprNodeGenericFuncDesc) expr).getGenericUDF() instanceof GenericUDFOPAnd) {
+            for (ExprNodeDesc child : expr.getChildren()) {
+                flatten(child, conjuncts);
+            }
+        } else {
+            conjuncts.add(expr);
+        }
+    }
+
+    /**
+     * Returns {column index, operator, constant} when the expression compares
+     * a major key column with a string constant, or null otherwise.
+     */
+    private static Object[] toCondition(String[] majorKeys, ExprNodeDesc expr) {
+        if (!(expr instanceof ExprNodeGenericFuncDesc)) {
+            return null;
+        }
+        GenericUDF udf = ((ExprNodeGenericFuncDesc) expr).getGenericUDF();
+        List<ExprNodeDesc> children = expr.getChildren();
+        if (children == null || children.size() != 2) {
+            return null;
+        }
+        ExprNodeDesc left = children.get(0);
+        ExprNodeDesc right = children.get(1);
+        boolean flipped = false;
+        if (left instanceof ExprNodeConstantDesc && right instanceof ExprNodeColumnDesc) {
+            ExprNodeDesc tmp = left;
+            left = right;
+            right = tmp;
+            flipped = true;
+        }
+        if (!(left instanceof ExprNodeColumnDesc) || !(right instanceof ExprNodeConstantDesc)) {
+            return null;
+        }
+        Object value = ((ExprNodeConstantDesc) right).getValue();
+        if (!(value instanceof String)) {
+            return null;
+        }
+        int col = indexOf(majorKeys, ((ExprNodeColumnDesc) left).getColumn());
+        if (col < 0) {
+            return null;
+        }
+
+        int op;
+        if (udf instanceof GenericUDFOPEqual) {
+            op = OP_EQ;
+        } else if (udf instanceof GenericUDFOPLessThan) {
+            op = flipped ? OP_GT : OP_LT;
+        } else if (udf instanceof GenericUDFOPEqualOrLessThan) {
+            op = flipped ? OP_GE : OP_LE;
+        } else if (udf instanceof GenericUDFOPGreaterThan) {
+            op = flipped ? OP_LT : OP_GT;
+        } else if (udf instanceof GenericUDFOPEqualOrGreaterThan) {
+            op = flipped ? OP_LE : OP_GE;
+        } else if (udf instanceof GenericUDFBridge
+                && ((GenericUDFBridge) udf).getUdfClass() == UDFLike.class
+                && !flipped) {
+            value = likePrefix((String) value);
+            if (value == null) {
+                return null;
+            }
+            op = OP_PREFIX;
+        } else {
+            return null;
+        }
+        return new Object[] {col, op, value};
+    }
+
+    /**
+     * Returns the literal prefix of a LIKE pattern of the form 'abc%', or null
+     * if the pattern has any other wildcard or escape.
+     */
+    private static String likePrefix(String pattern) {
+        if (pattern.length() < 2 || !pattern.endsWith("%")) {
+            return null;
+        }
+        String prefix = pattern.substring(0, pattern.length() - 1);
+        if (prefix.indexOf('%') >= 0 || prefix.indexOf('_') >= 0 || prefix.indexOf('\\') >= 0) {
+            return null;
+        }
+        return prefix;
+    }
+
+    private static int indexOf(String[] majorKeys, String column) {
+        for (int i = 0; i < majorKeys.length; i++) {
+            if (majorKeys[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ExprNodeDesc conjunction(List<ExprNodeDesc> exprs) {
+        if (exprs.isEmpty()) {
+            return null;
+        }
+        ExprNodeDesc ret = exprs.get(0);
+        for (int i = 1; i < exprs.size(); i++) {
+            List<ExprNodeDesc> children = new ArrayList<ExprNodeDesc>(2);
+            children.add(ret);
+            children.add(exprs.get(i));
+            ret = new ExprNodeGenericFuncDesc(TypeInfoFactory.booleanTypeInfo,
+                                              new GenericUDFOPAnd(), children);
+        }
+        return ret;
+    }
+
+}
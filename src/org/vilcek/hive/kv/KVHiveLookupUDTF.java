@@ -0,0 +1,347 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import oracle.kv.Consistency;
+import oracle.kv.Depth;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.ValueVersion;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Looks up the records stored under the major key of every input row, for
+ * enrichment joins that only need the KV records matching a fact table.
+ * Rows are buffered and their distinct major keys fetched with concurrent
+ * multiGet calls, one batch at a time; results, misses included, are kept
+ * in an LRU cache for the life of the task.
+ * Hive 0.7 gives a UDTF neither the job configuration nor constant
+ * arguments at initialization time, so the store settings come as the
+ * first argument, and since buffered rows are forwarded later than they
+ * were passed in, the function can not be used in a LATERAL VIEW: the
+ * columns the query needs are passed through instead.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+@Description(name = "kv_lookup",
+             value = "_FUNC_(settings, major_key, col1, col2, ...) - for every row, emits " +
+                     "col1, col2, ..., minor_path, value for each record stored under major_key",
+             extended = "settings is a string of property=value pairs separated by ';', " +
+                        "with at least kv.name and kv.host.port. major_key is an " +
+                        "array<string> of major key components, or a single string " +
+                        "component. Rows without records are emitted once with NULL " +
+                        "minor_path and value.")
+public class KVHiveLookupUDTF extends GenericUDTF {
+
+    private static final long CLOSE_TIMEOUT_MS = 10000;
+
+    private ObjectInspector settingsOI;
+    private ObjectInspector keyOI;
+    private ObjectInspector[] passThroughOIs;
+
+    private Configuration conf = null;
+    private KVStore kvstore = null;
+    private ExecutorService executor = null;
+    private Consistency consistency;
+    private long timeout;
+    private int batchSize;
+    private Map<List<String>, List<String[]>> cache;
+    private ThreadLocal<KVHiveValueCodec> valueCodecs;
+    // codecs of all lookup threads, which hold pooled decompressors
+    private final List<KVHiveValueCodec> openCodecs = new ArrayList<KVHiveValueCodec>();
+
+    private final List<List<String>> pendingKeys = new ArrayList<List<String>>();
+    private final List<Object[]> pendingRows = new ArrayList<Object[]>();
+
+    @Override
+    public StructObjectInspector initialize(ObjectInspector[] argOIs) throws UDFArgumentException {
+        if (argOIs.length < 2) {
+            throw new UDFArgumentException("kv_lookup takes the store settings, a major key " +
+                                           "and the columns to pass through");
+        }
+        settingsOI = argOIs[0];
+        if (!isString(settingsOI)) {
+            throw new UDFArgumentException("kv_lookup settings must be a string");
+        }
+        keyOI = argOIs[1];
+        if (!isString(keyOI) &&
+            !(keyOI instanceof ListObjectInspector &&
+              ((ListObjectInspector) keyOI).getListElementObjectInspector().getCategory() ==
+              ObjectInspector.Category.PRIMITIVE)) {
+            throw new UDFArgumentException("kv_lookup major key must be a string or an array<string>");
+        }
+        passThroughOIs = Arrays.copyOfRange(argOIs, 2, argOIs.length);
+
+        List<String> names = new ArrayList<String>();
+        List<ObjectInspector> ois = new ArrayList<ObjectInspector>();
+        for (int i = 0; i < passThroughOIs.length; i++) {
+            names.add("col" + (i + 1));
+            ois.add(ObjectInspectorUtils.getStandardObjectInspector(passThroughOIs[i]));
+        }
+        names.add("minor_path");
+        ois.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        names.add("value");
+        ois.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(names, ois);
+    }
+
+    private static boolean isString(ObjectInspector oi) {
+        return oi.getCategory() == ObjectInspector.Category.PRIMITIVE &&
+               ((PrimitiveObjectInspector) oi).getPrimitiveCategory() ==
+               PrimitiveObjectInspector.PrimitiveCategory.STRING;
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        if (conf == null) {
+            connect(toJava(args[0], settingsOI));
+        }
+        List<String> majorPath = getMajorPath(args[1]);
+        Object[] row = new Object[passThroughOIs.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = ObjectInspectorUtils.copyToStandardObject(args[i + 2], passThroughOIs[i]);
+        }
+        pendingKeys.add(majorPath);
+        pendingRows.add(row);
+        if (pendingRows.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void connect(String settings) throws HiveException {
+        conf = new Configuration(false);
+        if (settings != null) {
+            for (String pair : settings.split(";")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    conf.set(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+                }
+            }
+        }
+        String kvStoreName = ConfigProperties.getKVName(conf);
+        String kvHostPort = ConfigProperties.getKVHostPort(conf);
+        if (kvStoreName == null || kvHostPort == null) {
+            throw new HiveException("kv_lookup settings must set " + ConfigProperties.KV_NAME +
+                                    " and " + ConfigProperties.KV_HOST_PORT);
+        }
+        consistency = ConfigProperties.getKVScanConsistency(conf);
+        timeout = ConfigProperties.getKVScanTimeout(conf);
+        batchSize = Math.max(1, ConfigProperties.getKVLookupBatchSize(conf));
+        final int cacheSize = ConfigProperties.getKVLookupCacheSize(conf);
+        cache = new LinkedHashMap<List<String>, List<String[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, List<String[]>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        valueCodecs = new ThreadLocal<KVHiveValueCodec>() {
+            @Override
+            protected KVHiveValueCodec initialValue() {
+                KVHiveValueCodec valueCodec = KVHiveValueCodec.fromConf(conf);
+                synchronized (openCodecs) {
+                    openCodecs.add(valueCodec);
+                }
+                return valueCodec;
+            }
+        };
+        kvstore = KVHiveStorePool.acquire(kvStoreName, kvHostPort.split(","),
+                                          ConfigProperties.getKVStorePoolIdleTime(conf));
+        executor = Executors.newFixedThreadPool(Math.max(1, ConfigProperties.getKVLookupThreads(conf)),
+                                                new KVHiveThreadFactory("kv-lookup"));
+    }
+
+    private List<String> getMajorPath(Object key) {
+        if (key == null) {
+            return null;
+        }
+        if (keyOI instanceof ListObjectInspector) {
+            ListObjectInspector loi = (ListObjectInspector) keyOI;
+            ObjectInspector eoi = loi.getListElementObjectInspector();
+            int n = loi.getListLength(key);
+            List<String> ret = new ArrayList<String>(n);
+            for (int i = 0; i < n; i++) {
+                String component = toJava(loi.getListElement(key, i), eoi);
+                if (component == null) {
+                    return null;
+                }
+                ret.add(component);
+            }
+            return ret.isEmpty() ? null : ret;
+        }
+        String component = toJava(key, keyOI);
+        return component == null ? null : Collections.singletonList(component);
+    }
+
+    private static String toJava(Object o, ObjectInspector oi) {
+        Object ret = (o == null) ? null : ((PrimitiveObjectInspector) oi).getPrimitiveJavaObject(o);
+        return ret == null ? null : ret.toString();
+    }
+
+    /**
+     * Fetches the uncached keys of the buffered rows concurrently, then
+     * forwards the rows in the order they came in.
+     */
+    private void flush() throws HiveException {
+        Map<List<String>, Future<List<String[]>>> fetches =
+            new HashMap<List<String>, Future<List<String[]>>>();
+        Map<List<String>, List<String[]>> found = new HashMap<List<String>, List<String[]>>();
+        for (List<String> majorPath : pendingKeys) {
+            if (majorPath == null || found.containsKey(majorPath) || fetches.containsKey(majorPath)) {
+                continue;
+            }
+            List<String[]> cached = cache.get(majorPath);
+            if (cached != null) {
+                found.put(majorPath, cached);
+                continue;
+            }
+            final Key key = Key.createKey(majorPath);
+            fetches.put(majorPath, executor.submit(new Callable<List<String[]>>() {
+                @Override
+                public List<String[]> call() throws Exception {
+                    return lookup(key);
+                }
+            }));
+        }
+        for (Map.Entry<List<String>, Future<List<String[]>>> e : fetches.entrySet()) {
+            try {
+                List<String[]> records = e.getValue().get();
+                found.put(e.getKey(), records);
+                cache.put(e.getKey(), records);
+            } catch (InterruptedException IE) {
+                Thread.currentThread().interrupt();
+                throw new HiveException(IE);
+            } catch (ExecutionException EE) {
+                throw new HiveException("Lookup of " + e.getKey() + " failed", EE.getCause());
+            }
+        }
+
+        int n = passThroughOIs.length;
+        for (int i = 0; i < pendingRows.size(); i++) {
+            Object[] row = pendingRows.get(i);
+            List<String> majorPath = pendingKeys.get(i);
+            List<String[]> records = (majorPath == null) ? null : found.get(majorPath);
+            if (records == null || records.isEmpty()) {
+                forward(Arrays.copyOf(row, n + 2));
+                continue;
+            }
+            for (String[] record : records) {
+                Object[] out = Arrays.copyOf(row, n + 2);
+                out[n] = record[0];
+                out[n + 1] = record[1];
+                forward(out);
+            }
+        }
+        pendingKeys.clear();
+        pendingRows.clear();
+    }
+
+    /**
+     * Returns the minor path and value of every record under a major key.
+     */
+    private List<String[]> lookup(Key majorKey) throws IOException {
+        SortedMap<Key, ValueVersion> records =
+            kvstore.multiGet(majorKey, null, Depth.PARENT_AND_DESCENDANTS, consistency,
+                             timeout, TimeUnit.MILLISECONDS);
+        List<String[]> ret = new ArrayList<String[]>(records.size());
+        for (Map.Entry<Key, ValueVersion> e : records.entrySet()) {
+            StringBuilder minorPath = new StringBuilder();
+            for (String component : e.getKey().getMinorPath()) {
+                minorPath.append('/').append(component);
+            }
+            byte[] value = e.getValue().getValue().getValue();
+            Text text = new Text();
+            KVHiveValueCodec valueCodec = valueCodecs.get();
+            if (valueCodec.isEnabled() && KVHiveValueCodec.isCompressed(value, 0, value.length)) {
+                valueCodec.reset();
+                text.set(valueCodec.decompress(value, 0, value.length),
+                         valueCodec.getStart(), valueCodec.getLength());
+            } else {
+                text.set(value);
+            }
+            ret.add(new String[] {minorPath.toString(), text.toString()});
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() throws HiveException {
+        try {
+            if (!pendingRows.isEmpty()) {
+                flush();
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                closeCodecs();
+            }
+            if (kvstore != null) {
+                KVHiveStorePool.release(kvstore);
+                kvstore = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the decompressors of the lookup threads to the pool, once the
+     * threads are done with them.
+     */
+    private void closeCodecs() {
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (openCodecs) {
+            for (KVHiveValueCodec valueCodec : openCodecs) {
+                valueCodec.close();
+            }
+            openCodecs.clear();
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.HiveMetaHook;
+import org.apache.hadoop.hive.metastore.MetaStoreUtils;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.Table;
+
+/**
+ * Checks the definition of a KV table when it is created, so that a typo in
+ * a property fails the CREATE TABLE rather than the first query. Dropping
+ * a table never touches the store. Statistics are collected separately by
+ * KVHiveTableStats.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveMetaHook implements HiveMetaHook {
+
+    private static final Set<String> NUMERIC_PROPERTIES = new HashSet<String>(Arrays.asList(
+        ConfigProperties.KV_SPLIT_COUNT,
+        ConfigProperties.KV_SPLIT_TARGET_BYTES,
+        ConfigProperties.KV_SCAN_THREADS,
+        ConfigProperties.KV_SCAN_QUEUE_SIZE,
+        ConfigProperties.KV_SCAN_BATCH_SIZE,
+        ConfigProperties.KV_PREFETCH_BATCHES,
+        ConfigProperties.KV_SCAN_TIMEOUT,
+        ConfigProperties.KV_SCAN_MEMORY_BUDGET,
+        ConfigProperties.KV_SCAN_TARGET_LATENCY,
+        ConfigProperties.KV_SCAN_RETRIES,
+        ConfigProperties.KV_SCAN_RETRY_BACKOFF,
+        ConfigProperties.KV_SNAPSHOT_TTL,
+        ConfigProperties.KV_TOPOLOGY_CACHE_TTL,
+        ConfigProperties.KV_PING_TIMEOUT,
+        ConfigProperties.KV_PING_THREADS,
+        ConfigProperties.KV_STATS_SAMPLE_SIZE,
+        ConfigProperties.KV_STATS_THREADS,
+        ConfigProperties.KV_STATS_CACHE_TTL,
+        ConfigProperties.KV_STATS_MAX_AGE,
+        ConfigProperties.KV_STORE_POOL_IDLE_TIME,
+        ConfigProperties.KV_PIVOT_MAX_RECORDS,
+        ConfigProperties.KV_WRITE_BATCH_SIZE,
+        ConfigProperties.KV_WRITE_BUFFER_SIZE,
+        ConfigProperties.KV_WRITE_THREADS,
+        ConfigProperties.KV_WRITE_QUEUE_SIZE));
+
+    @Override
+    public void preCreateTable(Table table) throws MetaException {
+        if (!MetaStoreUtils.isExternalTable(table)) {
+            throw new MetaException("KV tables must be created as EXTERNAL tables");
+        }
+        Configuration conf = new Configuration(false);
+        for (Map.Entry<String, String> e : table.getSd().getSerdeInfo().getParameters().entrySet()) {
+            conf.set(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : table.getParameters().entrySet()) {
+            conf.set(e.getKey(), e.getValue());
+        }
+        require(conf, ConfigProperties.KV_NAME);
+        require(conf, ConfigProperties.KV_HOST_PORT);
+        require(conf, ConfigProperties.KV_MAJOR_KEYS_MAPPING);
+        checkMapping(conf, ConfigProperties.KV_MAJOR_KEYS_MAPPING);
+        checkMapping(conf, ConfigProperties.KV_MINOR_KEYS_MAPPING);
+        checkMapping(conf, ConfigProperties.KV_VALUE_COLUMNS);
+        for (String hostPort : ConfigProperties.getKVHostPort(conf).split(",")) {
+            int colon = hostPort.lastIndexOf(':');
+            if (colon <= 0 || !isNumber(hostPort.substring(colon + 1))) {
+                throw new MetaException("Invalid " + ConfigProperties.KV_HOST_PORT + ": " + hostPort +
+                                        ", expected host:port");
+            }
+        }
+        for (String name : NUMERIC_PROPERTIES) {
+            String value = conf.get(name);
+            if (value != null && !isNumber(value.trim())) {
+                throw new MetaException("Invalid " + name + ": " + value + ", expected a number");
+            }
+        }
+        try {
+            ConfigProperties.getKVScanDirection(conf);
+            ConfigProperties.getKVScanConsistency(conf);
+            KVHiveColumnMapping.fromConf(conf).
+                checkBinaryColumns(conf.get(ConfigProperties.KV_BINARY_COLUMNS));
+            KVHiveValueCodec.fromConf(conf).validate();
+        } catch (IllegalArgumentException IAE) {
+            throw new MetaException(IAE.getMessage());
+        }
+        String rowMode = conf.get(ConfigProperties.KV_ROW_MODE);
+        if (rowMode != null &&
+            !rowMode.equalsIgnoreCase(ConfigProperties.ROW_MODE_RECORD) &&
+            !rowMode.equalsIgnoreCase(ConfigProperties.ROW_MODE_PIVOT)) {
+            throw new MetaException("Invalid " + ConfigProperties.KV_ROW_MODE + ": " + rowMode);
+        }
+    }
+
+    private static void require(Configuration conf, String name) throws MetaException {
+        String value = conf.get(name);
+        if (value == null || value.trim().length() == 0) {
+            throw new MetaException("Missing table property " + name);
+        }
+    }
+
+    private static void checkMapping(Configuration conf, String name) throws MetaException {
+        String value = conf.get(name);
+        if (value == null) {
+            return;
+        }
+        for (String key : value.split(",", -1)) {
+            if (key.length() == 0 || !key.trim().equals(key)) {
+                throw new MetaException("Invalid " + name + ": \"" + value +
+                                        "\", key names must be separated by commas only");
+            }
+        }
+    }
+
+    private static boolean isNumber(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException NFE) {
+            return false;
+        }
+    }
+
+    @Override
+    public void rollbackCreateTable(Table table) throws MetaException {
+        //nothing was created in the store
+    }
+
+    @Override
+    public void commitCreateTable(Table table) throws MetaException {
+        //nothing to create in the store
+    }
+
+    @Override
+    public void preDropTable(Table table) throws MetaException {
+        //the data stays in the store
+    }
+
+    @Override
+    public void rollbackDropTable(Table table) throws MetaException {
+        //nothing was dropped in the store
+    }
+
+    @Override
+    public void commitDropTable(Table table, boolean deleteData) throws MetaException {
+        //the data stays in the store
+    }
+
+}
@@ -23,7 +23,6 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.exec.FileSinkOperator.RecordWriter;
 import org.apache.hadoop.hive.ql.io.HiveOutputFormat;
-import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
@@ -34,21 +33,21 @@ import org.apache.hadoop.util.Progressable;
  *
  * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
  */
-public class KVHiveOutputFormat implements OutputFormat<NullWritable, MapWritable>, HiveOutputFormat<NullWritable, MapWritable> {
+public class KVHiveOutputFormat implements OutputFormat<NullWritable, KVHiveRow>, HiveOutputFormat<NullWritable, KVHiveRow> {
 
     @Override
     public RecordWriter getHiveRecordWriter(JobConf jc, Path path, Class<? extends Writable> type, boolean bln, Properties prprts, Progressable p) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new KVHiveRecordWriter(jc);
     }
 
     @Override
-    public org.apache.hadoop.mapred.RecordWriter<NullWritable, MapWritable> getRecordWriter(FileSystem fs, JobConf jc, String string, Progressable p) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public org.apache.hadoop.mapred.RecordWriter<NullWritable, KVHiveRow> getRecordWriter(FileSystem fs, JobConf jc, String string, Progressable p) throws IOException {
+        return new KVHiveRecordWriter(jc);
     }
 
     @Override
     public void checkOutputSpecs(FileSystem fs, JobConf jc) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        //nothing to check, the store is not a file system
     }
     
 }
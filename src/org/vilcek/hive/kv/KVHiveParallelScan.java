@@ -0,0 +1,201 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import oracle.kv.FaultException;
+import oracle.kv.KeyValueVersion;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Scans the partitions of a combined split on a bounded thread pool.
+ * Each worker pushes chunks of records into a bounded queue that the
+ * record reader drains through the Iterator interface. Records of one
+ * partition keep their order; records of different partitions interleave.
+ * With a non-zero major path slack, a chunk is only cut between two major
+ * paths (unless it grows by more than the slack), so the records of one
+ * major path reach the reader next to each other. In keys only mode the
+ * values are not fetched.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveParallelScan implements Iterator<KeyValueVersion>, Closeable {
+
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final List<KeyValueVersion> END = Collections.emptyList();
+
+    private final KVHiveStoreHandle storeHandle;
+    private final KVHiveInputSplit split;
+    private final int chunkSize;
+    private final int majorPathSlack;
+    private final boolean keysOnly;
+    private final Configuration conf;
+    private final KVHiveScanMetrics metrics;
+    private final int nThreads;
+    private final BlockingQueue<List<KeyValueVersion>> queue;
+    private final ExecutorService executor;
+    private final int nParts;
+    private int finished = 0;
+    private List<KeyValueVersion> chunk = null;
+    private int pos = 0;
+    private volatile Throwable failure = null;
+
+    public KVHiveParallelScan(KVHiveStoreHandle storeHandle, KVHiveCombinedSplit split,
+                              Configuration conf, int majorPathSlack,
+                              boolean keysOnly, KVHiveScanMetrics metrics) {
+        this.storeHandle = storeHandle;
+        this.split = split;
+        this.chunkSize = split.getBatchSize() > 0 ? split.getBatchSize() : DEFAULT_CHUNK_SIZE;
+        this.majorPathSlack = majorPathSlack;
+        this.keysOnly = keysOnly;
+        this.conf = conf;
+        this.metrics = metrics;
+        int[] parts = split.getKVParts();
+        nParts = parts.length;
+        nThreads = Math.max(1, Math.min(ConfigProperties.getKVScanThreads(conf), nParts));
+        queue = new ArrayBlockingQueue<List<KeyValueVersion>>(
+            Math.max(1, ConfigProperties.getKVScanQueueSize(conf)));
+        executor = Executors.newFixedThreadPool(nThreads,
+                                                new KVHiveThreadFactory("kv-partition-scan"));
+        for (int i = 0; i < nParts; i++) {
+            final int partId = parts[i];
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scan(partId);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    private void scan(int partId) {
+        Iterator<KeyValueVersion> it = null;
+        try {
+            it = new KVHivePartitionIterator(storeHandle,
+                                            partId,
+                                            keysOnly,
+                                            split.getDirection(),
+                                            KVHiveBatchSizer.fromConf(conf, split.getBatchSize(), nThreads),
+                                            split.getParentKey(),
+                                            split.getSubRange(),
+                                            split.getDepth(),
+                                            split.getConsistency(),
+                                            split.getTimeout(),
+                                            split.getTimeoutUnit()).
+                    setRetries(ConfigProperties.getKVScanRetries(conf),
+                               ConfigProperties.getKVScanRetryBackoff(conf)).
+                    setAvoidMaster(ConfigProperties.isKVScanAvoidMaster(conf)).
+                    setMetrics(metrics);
+            it = KVHiveSnapshotCache.open(conf, split, partId, keysOnly, it);
+            List<KeyValueVersion> out = new ArrayList<KeyValueVersion>(chunkSize);
+            while (it.hasNext()) {
+                KeyValueVersion kvv = it.next();
+                if (out.size() >= chunkSize &&
+                    (out.size() >= chunkSize + majorPathSlack ||
+                     !sameMajorPath(out.get(out.size() - 1), kvv))) {
+                    queue.put(out);
+                    out = new ArrayList<KeyValueVersion>(chunkSize);
+                }
+                out.add(kvv);
+            }
+            if (!out.isEmpty()) {
+                queue.put(out);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            closeQuietly(it);
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static void closeQuietly(Iterator<KeyValueVersion> it) {
+        if (it instanceof Closeable) {
+            try {
+                ((Closeable) it).close();
+            } catch (IOException IOE) {
+                System.err.println("Can not close scan: " + IOE.getMessage());
+            }
+        }
+    }
+
+    private static boolean sameMajorPath(KeyValueVersion a, KeyValueVersion b) {
+        return a.getKey().getMajorPath().equals(b.getKey().getMajorPath());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (chunk == null || pos >= chunk.size()) {
+            if (finished == nParts) {
+                return false;
+            }
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            pos = 0;
+            if (chunk == END) {
+                finished++;
+                if (failure != null) {
+                    if (failure instanceof FaultException) {
+                        throw (FaultException) failure;
+                    }
+                    throw new RuntimeException(failure);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public KeyValueVersion next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.get(pos++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("read-only iterator");
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
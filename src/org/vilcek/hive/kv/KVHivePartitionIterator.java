@@ -0,0 +1,373 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import oracle.kv.Consistency;
+import oracle.kv.Depth;
+import oracle.kv.Direction;
+import oracle.kv.FaultException;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.KeyRange;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.Value;
+import oracle.kv.Version;
+import oracle.kv.impl.api.KVStoreImpl;
+import oracle.kv.impl.api.Request;
+import oracle.kv.impl.api.RequestDispatcher;
+import oracle.kv.impl.api.ops.InternalOperation;
+import oracle.kv.impl.api.ops.Result;
+import oracle.kv.impl.api.ops.ResultKeyValueVersion;
+import oracle.kv.impl.api.ops.StoreIterate;
+import oracle.kv.impl.api.ops.StoreKeysIterate;
+import oracle.kv.impl.api.rgstate.RepGroupState;
+import oracle.kv.impl.api.rgstate.RepNodeState;
+import oracle.kv.impl.topo.PartitionId;
+import oracle.kv.impl.topo.RepNode;
+import oracle.kv.impl.topo.RepNodeId;
+import oracle.kv.impl.topo.Topology;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Iterates over the records of a single partition by issuing the internal
+ * StoreIterate operation (or StoreKeysIterate, in keys only mode) that the
+ * store iterators are built on, one batch at a time, resuming after the last
+ * key returned. Unlike partitionIterator this can skip values altogether,
+ * which KVStore has no partition level API for, and lets a KVHiveBatchSizer
+ * choose the size of every batch. In keys only mode every key is returned
+ * with an empty value and a dummy version.
+ * A request that fails is retried with exponential backoff, from just past
+ * the last key returned, and from the second retry on over a new store
+ * connection, so a failover or a network blip does not restart the scan.
+ * When the consistency lets replicas serve the scan, requests can be kept
+ * away from the master of the partition, and sent to a replica on the local
+ * host if there is one.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHivePartitionIterator implements Iterator<KeyValueVersion> {
+
+    // same defaults as KVStoreImpl and KVStoreConfig
+    private static final int DEFAULT_TIMEOUT_MS = 5000;
+    private static final int REQUEST_TTL = 5;
+
+    // placeholders, KeyValueVersion does not accept nulls
+    static final Value EMPTY_VALUE = Value.createValue(new byte[0]);
+    static final Version NO_VERSION = new Version(new UUID(0, 0), 0);
+
+    private static final long MAX_BACKOFF_MS = 10000;
+
+    private static final Log LOG = LogFactory.getLog(KVHivePartitionIterator.class);
+
+    private static Set<String> localHostNames = null;
+
+    private final KVHiveStoreHandle handle;
+    private final PartitionId partitionId;
+    private final boolean keysOnly;
+    private final Direction direction;
+    private final KVHiveBatchSizer sizer;
+    private final byte[] parentKey;
+    private final KeyRange subRange;
+    private final Depth depth;
+    private final Consistency consistency;
+    private final int timeoutMs;
+    private List<byte[]> keyBatch = null;
+    private List<ResultKeyValueVersion> batch = null;
+    private int size = 0;
+    private int pos = 0;
+    private boolean more = true;
+    private byte[] resumeKey = null;
+    private int retries = 0;
+    private long backoffMs = 0;
+    private boolean avoidMaster = false;
+    private KVHiveScanMetrics metrics = null;
+    private long scanStart = 0;
+    private long records = 0;
+
+    public KVHivePartitionIterator(KVHiveStoreHandle handle, int partId, boolean keysOnly,
+                                   Direction direction, KVHiveBatchSizer sizer,
+                                   Key parentKey, KeyRange subRange, Depth depth,
+                                   Consistency consistency,
+                                   long timeout, TimeUnit timeoutUnit) {
+        this.handle = handle;
+        this.partitionId = new PartitionId(partId);
+        this.keysOnly = keysOnly;
+        this.direction = direction;
+        this.sizer = sizer;
+        this.parentKey = (parentKey == null) ? null : parentKey.toByteArray();
+        this.subRange = subRange;
+        this.depth = (depth == null) ? Depth.PARENT_AND_DESCENDANTS : depth;
+        this.consistency = (consistency == null) ? Consistency.NONE_REQUIRED : consistency;
+        this.timeoutMs = (timeout > 0 && timeoutUnit != null) ?
+                         (int) timeoutUnit.toMillis(timeout) :
+                         DEFAULT_TIMEOUT_MS;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pos >= size) {
+            if (!more) {
+                return false;
+            }
+            fetch();
+        }
+        return true;
+    }
+
+    private void fetch() {
+        int batchSize = sizer.getBatchSize();
+        InternalOperation op = keysOnly ?
+            new StoreKeysIterate(parentKey, subRange, depth, direction, batchSize, resumeKey) :
+            new StoreIterate(parentKey, subRange, depth, direction, batchSize, resumeKey);
+        long start = System.nanoTime();
+        if (scanStart == 0) {
+            scanStart = start;
+        }
+        Result result = executeWithRetries(op);
+        long elapsed = System.nanoTime() - start;
+        long nBytes = 0;
+        boolean countBytes = sizer.isAdaptive() || metrics != null;
+        if (keysOnly) {
+            keyBatch = result.getKeyList();
+            size = keyBatch.size();
+            if (size > 0) {
+                resumeKey = keyBatch.get(size - 1);
+            }
+            if (countBytes) {
+                for (byte[] k : keyBatch) {
+                    nBytes += k.length;
+                }
+            }
+        } else {
+            batch = result.getKeyValueVersionList();
+            size = batch.size();
+            if (size > 0) {
+                resumeKey = batch.get(size - 1).getKeyBytes();
+            }
+            if (countBytes) {
+                for (ResultKeyValueVersion kvv : batch) {
+                    nBytes += kvv.getKeyBytes().length + kvv.getValue().getValue().length;
+                }
+            }
+        }
+        pos = 0;
+        more = result.hasMoreElements() && size > 0;
+        sizer.update(size, nBytes, elapsed);
+        records += size;
+        long scanMs = more ? 0 : (System.nanoTime() - scanStart) / 1000000L;
+        if (metrics != null) {
+            metrics.fetched(elapsed);
+            if (!more) {
+                metrics.partitionScanned(scanMs);
+            }
+        }
+        if (!more && LOG.isDebugEnabled()) {
+            LOG.debug("Scanned " + partitionId + ": " + records + " records in " + scanMs + " ms");
+        }
+    }
+
+    /**
+     * Sets how many times a failed request is retried, and the delay before
+     * the first retry, doubled on each following one.
+     */
+    KVHivePartitionIterator setRetries(int retries, long backoffMs) {
+        this.retries = retries;
+        this.backoffMs = backoffMs;
+        return this;
+    }
+
+    /**
+     * Counts batches, fetch latencies, retries and the scan time of the
+     * partition.
+     */
+    KVHivePartitionIterator setMetrics(KVHiveScanMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Keeps requests away from the master of the partition, when the
+     * consistency of the scan allows reading from a replica.
+     */
+    KVHivePartitionIterator setAvoidMaster(boolean avoidMaster) {
+        this.avoidMaster = avoidMaster && allowsReplicas(consistency);
+        return this;
+    }
+
+    private Result executeWithRetries(InternalOperation op) {
+        KVStore kvstore = handle.get();
+        int attempt = 0;
+        while (true) {
+            try {
+                RequestDispatcher dispatcher = ((KVStoreImpl) kvstore).getDispatcher();
+                // give up the replica preferences on the first failures, the
+                // preferred replicas may be the ones that are down
+                return execute(dispatcher, partitionId, op, consistency, timeoutMs,
+                               avoidMaster ? excludedRepNodes(dispatcher, attempt) : null);
+            } catch (FaultException FE) {
+                if (++attempt > retries) {
+                    throw FE;
+                }
+                if (metrics != null) {
+                    metrics.add(KVHiveScanMetrics.Counter.RETRIES, 1);
+                }
+                System.err.println("Scan of " + partitionId + " failed (" + FE.getMessage() +
+                                   "), retry " + attempt + " of " + retries);
+                try {
+                    Thread.sleep(Math.min(MAX_BACKOFF_MS, backoffMs << (attempt - 1)));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw FE;
+                }
+                if (attempt > 1) {
+                    try {
+                        kvstore = handle.reconnect(kvstore);
+                    } catch (FaultException reconnectFE) {
+                        System.err.println("Reconnect failed: " + reconnectFE.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the RepNodes a request should not be sent to: the master and,
+     * if a replica of the partition runs on this host, all other replicas.
+     * After one failed attempt only the master is left out, after two none,
+     * and the master is never left out if it is the only node known to be
+     * up.
+     */
+    private Set<RepNodeId> excludedRepNodes(RequestDispatcher dispatcher, int attempt) {
+        if (attempt >= 2) {
+            return null;
+        }
+        Topology topology = dispatcher.getTopologyManager().getTopology();
+        RepGroupState groupState =
+            dispatcher.getRepGroupStateTable().getGroupState(topology.getRepGroupId(partitionId));
+        RepNodeState master = (groupState == null) ? null : groupState.getMaster();
+        if (master == null) {
+            return null;
+        }
+        Set<RepNodeId> ret = new HashSet<RepNodeId>();
+        Set<RepNodeId> remote = new HashSet<RepNodeId>();
+        boolean replicaUp = false;
+        boolean localReplica = false;
+        for (RepNodeState rn : groupState.getRepNodeStates()) {
+            RepNodeId rnId = rn.getRepNodeId();
+            if (rnId.equals(master.getRepNodeId()) ||
+                !"REPLICA".equals(KVHiveTopologyCache.getReplicationState(rn))) {
+                ret.add(rnId);
+                continue;
+            }
+            replicaUp = true;
+            RepNode repNode = topology.get(rnId);
+            if (repNode != null &&
+                isLocalHost(topology.get(repNode.getStorageNodeId()).getHostname())) {
+                localReplica = true;
+            } else {
+                remote.add(rnId);
+            }
+        }
+        if (!replicaUp) {
+            return null;
+        }
+        if (localReplica && attempt == 0) {
+            ret.addAll(remote);
+        }
+        return ret;
+    }
+
+    private static synchronized boolean isLocalHost(String host) {
+        if (localHostNames == null) {
+            localHostNames = new HashSet<String>();
+            try {
+                InetAddress local = InetAddress.getLocalHost();
+                localHostNames.add(local.getHostName().toLowerCase());
+                localHostNames.add(local.getCanonicalHostName().toLowerCase());
+                localHostNames.add(local.getHostAddress());
+            } catch (UnknownHostException UHE) {
+                System.err.println("Can not resolve the local host: " + UHE.getMessage());
+            }
+        }
+        return localHostNames.contains(host.toLowerCase());
+    }
+
+    /**
+     * False if only the master can serve reads with the given consistency.
+     */
+    static boolean allowsReplicas(Consistency consistency) {
+        return consistency == null ||
+               !Consistency.ABSOLUTE.getName().equals(consistency.getName());
+    }
+
+    /**
+     * Runs an internal read operation against one partition.
+     */
+    static Result execute(RequestDispatcher dispatcher, PartitionId partitionId,
+                          InternalOperation op, Consistency consistency, int timeoutMs) {
+        return execute(dispatcher, partitionId, op, consistency, timeoutMs, null);
+    }
+
+    /**
+     * Runs an internal read operation against one partition, on any RepNode
+     * of its group but the excluded ones.
+     */
+    static Result execute(RequestDispatcher dispatcher, PartitionId partitionId,
+                          InternalOperation op, Consistency consistency, int timeoutMs,
+                          Set<RepNodeId> excludeRNs) {
+        Request request = new Request(op, partitionId, false, null,
+                                      (consistency == null) ? Consistency.NONE_REQUIRED : consistency,
+                                      REQUEST_TTL,
+                                      dispatcher.getTopologyManager().getTopology().getSequenceNumber(),
+                                      dispatcher.getDispatcherId(),
+                                      (timeoutMs > 0) ? timeoutMs : DEFAULT_TIMEOUT_MS);
+        if (excludeRNs == null || excludeRNs.isEmpty()) {
+            return dispatcher.execute(request).getResult();
+        }
+        return dispatcher.execute(request, excludeRNs).getResult();
+    }
+
+    @Override
+    public KeyValueVersion next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (keysOnly) {
+            return new KeyValueVersion(Key.fromByteArray(keyBatch.get(pos++)), EMPTY_VALUE, NO_VERSION);
+        }
+        ResultKeyValueVersion kvv = batch.get(pos++);
+        return new KeyValueVersion(Key.fromByteArray(kvv.getKeyBytes()), kvv.getValue(), kvv.getVersion());
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("read-only iterator");
+    }
+
+}
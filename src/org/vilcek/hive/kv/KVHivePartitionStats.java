@@ -0,0 +1,306 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import oracle.kv.Consistency;
+import oracle.kv.Depth;
+import oracle.kv.Direction;
+import oracle.kv.Key;
+import oracle.kv.impl.api.KVStoreImpl;
+import oracle.kv.impl.api.RequestDispatcher;
+import oracle.kv.impl.api.ops.Result;
+import oracle.kv.impl.api.ops.ResultKeyValueVersion;
+import oracle.kv.impl.api.ops.StoreIterate;
+import oracle.kv.impl.api.ops.StoreKeysIterate;
+import oracle.kv.impl.topo.PartitionId;
+
+/**
+ * Estimates the number of records and bytes of partitions from a small
+ * sample: the first and the last keys of the partition, and the values of
+ * its first VALUE_SAMPLE_SIZE records for the average value size. Keys of a
+ * partition are sorted, so the density of the two samples over the key
+ * space, interpolated between the first and the last key, gives the record
+ * count. A partition that fits in the first sample is counted exactly.
+ * Estimates are cached per JVM.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHivePartitionStats {
+
+    private static final Map<String, Estimate> cache = new HashMap<String, Estimate>();
+    private static final int ASCII_DIGITS = 6;
+    private static final int VALUE_SAMPLE_SIZE = 10;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    public static class Estimate {
+        private final long records;
+        private final long bytes;
+        private final byte[] firstKey;
+        private final byte[] lastKey;
+        private final long created;
+
+        Estimate(long records, long bytes, byte[] firstKey, byte[] lastKey) {
+            this.records = records;
+            this.bytes = bytes;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+            this.created = System.currentTimeMillis();
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns up to n - 1 increasing values of the first major key
+         * component that cut the partition into n key ranges of about the
+         * same number of records, interpolated between the first and the
+         * last key of the partition. Values are plain ASCII, so they are
+         * ordered the same way as the key bytes. None if the first and last
+         * keys first differ in a non-ASCII byte.
+         */
+        public String[] getBoundaries(int n) {
+            if (n < 2 || firstKey == null || lastKey == null) {
+                return new String[0];
+            }
+            byte[] lo = firstComponent(firstKey);
+            byte[] hi = firstComponent(lastKey);
+            int prefix = commonPrefix(lo, hi);
+            int asciiPrefix = 0;
+            while (asciiPrefix < prefix && lo[asciiPrefix] > 0) {
+                asciiPrefix++;
+            }
+            prefix = asciiPrefix;
+            if (prefix < hi.length && hi[prefix] < 0) {
+                // keys differ beyond ASCII, which the interpolation can not
+                // tell apart: they would all fall into the last range
+                return new String[0];
+            }
+            double from = asciiPosition(lo, prefix);
+            double to = asciiPosition(hi, prefix);
+            TreeSet<String> ret = new TreeSet<String>();
+            String prefixStr = new String(lo, 0, prefix, US_ASCII);
+            for (int i = 1; i < n; i++) {
+                String b = prefixStr + asciiString(from + (to - from) * i / n);
+                if (b.compareTo(prefixStr) > 0) {
+                    ret.add(b);
+                }
+            }
+            return ret.toArray(new String[ret.size()]);
+        }
+    }
+
+    /**
+     * Returns the estimates of the given partitions, in the same order,
+     * sampling at most sampleSize records from each end of every partition
+     * that has no cached estimate younger than ttlMs. Partitions that could
+     * not be sampled get a null estimate.
+     */
+    public static Estimate[] get(final KVStoreImpl kvstore, String kvStoreName, String[] kvHelperHosts,
+                                 int[] partIds, final int sampleSize, int nThreads, long ttlMs) {
+        String storeKey = KVHiveTopologyCache.cacheKey(kvStoreName, kvHelperHosts);
+        Estimate[] ret = new Estimate[partIds.length];
+        List<Integer> missing = new ArrayList<Integer>();
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            for (int i = 0; i < partIds.length; i++) {
+                Estimate e = cache.get(storeKey + "#" + partIds[i]);
+                if (e != null && now - e.created < ttlMs) {
+                    ret[i] = e;
+                } else {
+                    missing.add(i);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return ret;
+        }
+        ExecutorService executor =
+            Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, missing.size())),
+                                         new KVHiveThreadFactory("kv-partition-sample"));
+        try {
+            List<Future<Estimate>> futures = new ArrayList<Future<Estimate>>(missing.size());
+            for (int i : missing) {
+                final int partId = partIds[i];
+                futures.add(executor.submit(new Callable<Estimate>() {
+                    @Override
+                    public Estimate call() throws Exception {
+                        return sample(kvstore, partId, sampleSize);
+                    }
+                }));
+            }
+            for (int j = 0; j < missing.size(); j++) {
+                int i = missing.get(j);
+                try {
+                    ret[i] = futures.get(j).get();
+                } catch (ExecutionException ee) {
+                    System.err.println("Could not sample partition " + partIds[i] + ": " +
+                                       ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (ttlMs > 0) {
+            synchronized (cache) {
+                for (int i : missing) {
+                    if (ret[i] != null) {
+                        cache.put(storeKey + "#" + partIds[i], ret[i]);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static Estimate sample(KVStoreImpl kvstore, int partId, int sampleSize) {
+        RequestDispatcher dispatcher = kvstore.getDispatcher();
+        PartitionId partitionId = new PartitionId(partId);
+        Result first = KVHivePartitionIterator.execute(
+            dispatcher, partitionId,
+            new StoreKeysIterate(null, null, Depth.PARENT_AND_DESCENDANTS, Direction.FORWARD,
+                                 sampleSize, null),
+            Consistency.NONE_REQUIRED, 0);
+        List<byte[]> head = first.getKeyList();
+        if (head.isEmpty()) {
+            return new Estimate(0, 0, null, null);
+        }
+        long keyBytes = 0;
+        for (byte[] key : head) {
+            keyBytes += key.length;
+        }
+        // values only for a few records, they may be large
+        Result values = KVHivePartitionIterator.execute(
+            dispatcher, partitionId,
+            new StoreIterate(null, null, Depth.PARENT_AND_DESCENDANTS, Direction.FORWARD,
+                             Math.min(sampleSize, VALUE_SAMPLE_SIZE), null),
+            Consistency.NONE_REQUIRED, 0);
+        List<ResultKeyValueVersion> valueSample = values.getKeyValueVersionList();
+        long valueBytes = 0;
+        for (ResultKeyValueVersion kvv : valueSample) {
+            valueBytes += kvv.getValue().getValue().length;
+        }
+        double recordBytes = (double) keyBytes / head.size() +
+                             (valueSample.isEmpty() ? 0 : (double) valueBytes / valueSample.size());
+        if (!first.hasMoreElements()) {
+            return new Estimate(head.size(), (long) (head.size() * recordBytes), null, null);
+        }
+        Result last = KVHivePartitionIterator.execute(
+            dispatcher, partitionId,
+            new StoreKeysIterate(null, null, Depth.PARENT_AND_DESCENDANTS, Direction.REVERSE,
+                                 sampleSize, null),
+            Consistency.NONE_REQUIRED, 0);
+        List<byte[]> tail = last.getKeyList();
+        long records = head.size() + tail.size();
+        if (!tail.isEmpty()) {
+            byte[] lo = head.get(0);
+            byte[] hi = tail.get(0);
+            int prefix = commonPrefix(lo, hi);
+            double span = position(hi, prefix) - position(lo, prefix);
+            double sampledSpan =
+                (position(head.get(head.size() - 1), prefix) - position(lo, prefix)) +
+                (position(hi, prefix) - position(tail.get(tail.size() - 1), prefix));
+            if (sampledSpan > 0 && span > sampledSpan) {
+                records = Math.max(records, (long) (span * (head.size() + tail.size()) / sampledSpan));
+            }
+        }
+        return new Estimate(records, (long) (records * recordBytes),
+                            head.get(0),
+                            tail.isEmpty() ? null : tail.get(0));
+    }
+
+    private static byte[] firstComponent(byte[] key) {
+        return Arrays.copyOf(key, Key.getComponentLength(key, 0));
+    }
+
+    /**
+     * Position in [0, 1) of the ASCII digits that follow the prefix, bytes
+     * beyond ASCII counting as the largest digit.
+     */
+    private static double asciiPosition(byte[] b, int prefix) {
+        double ret = 0;
+        double scale = 1.0 / 128;
+        for (int i = prefix; i < prefix + ASCII_DIGITS; i++) {
+            int d = (i < b.length) ? Math.min(b[i] & 0xff, 127) : 0;
+            ret += d * scale;
+            scale /= 128;
+        }
+        return ret;
+    }
+
+    private static String asciiString(double position) {
+        byte[] ret = new byte[ASCII_DIGITS];
+        int len = 0;
+        for (int i = 0; i < ASCII_DIGITS; i++) {
+            position *= 128;
+            int d = Math.min(127, (int) position);
+            position -= d;
+            // 0 is the key component separator
+            ret[i] = (byte) Math.max(1, d);
+            if (d > 0) {
+                len = i + 1;
+            }
+        }
+        return new String(ret, 0, len, US_ASCII);
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Position of a key in [0, 1), from the 6 bytes that follow the prefix
+     * shared by every key of the sample.
+     */
+    private static double position(byte[] key, int prefix) {
+        double ret = 0;
+        double scale = 1.0 / 256;
+        for (int i = prefix; i < prefix + 6; i++) {
+            int b = (i < key.length) ? (key[i] & 0xff) : 0;
+            ret += b * scale;
+            scale /= 256;
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import oracle.kv.FaultException;
+import oracle.kv.KeyValueVersion;
+
+/**
+ * Reads ahead of the record reader: a background thread pulls records from
+ * the store iterator into a fixed set of batch buffers while Hive processes
+ * the current batch, so network waits overlap with operator work. Buffers
+ * go back and forth between a free queue and a full queue and are never
+ * reallocated; with two buffers this is plain double buffering.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHivePrefetchIterator implements Iterator<KeyValueVersion>, Closeable {
+
+    private static class Batch {
+        final KeyValueVersion[] records;
+        int size = 0;
+        boolean last = false;
+        Throwable failure = null;
+
+        Batch(int capacity) {
+            records = new KeyValueVersion[capacity];
+        }
+    }
+
+    private final Iterator<KeyValueVersion> source;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Batch> full;
+    private final ExecutorService executor;
+    private Batch current = null;
+    private int pos = 0;
+
+    public KVHivePrefetchIterator(Iterator<KeyValueVersion> source, int batchSize, int nBatches) {
+        this.source = source;
+        int n = Math.max(2, nBatches);
+        free = new ArrayBlockingQueue<Batch>(n);
+        full = new ArrayBlockingQueue<Batch>(n);
+        for (int i = 0; i < n; i++) {
+            free.add(new Batch(Math.max(1, batchSize)));
+        }
+        executor = Executors.newSingleThreadExecutor(new KVHiveThreadFactory("kv-prefetch"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fetch();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void fetch() {
+        try {
+            boolean last = false;
+            while (!last) {
+                Batch batch = free.take();
+                try {
+                    while (batch.size < batch.records.length && source.hasNext()) {
+                        batch.records[batch.size++] = source.next();
+                    }
+                    last = batch.size < batch.records.length;
+                } catch (Throwable t) {
+                    batch.failure = t;
+                    last = true;
+                }
+                batch.last = last;
+                full.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // closed by the reader
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current == null || pos >= current.size) {
+            if (current != null) {
+                if (current.failure != null) {
+                    if (current.failure instanceof FaultException) {
+                        throw (FaultException) current.failure;
+                    }
+                    throw new RuntimeException(current.failure);
+                }
+                if (current.last) {
+                    return false;
+                }
+                Arrays.fill(current.records, 0, current.size, null);
+                current.size = 0;
+                free.add(current);
+            }
+            try {
+                current = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public KeyValueVersion next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.records[pos++];
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("read-only iterator");
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (source instanceof Closeable) {
+            ((Closeable) source).close();
+        }
+    }
+
+}
@@ -17,94 +17,283 @@
 
 package org.vilcek.hive.kv;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
-import oracle.kv.KVStore;
-import oracle.kv.KVStoreConfig;
-import oracle.kv.KVStoreFactory;
+import oracle.kv.Key;
 import oracle.kv.KeyValueVersion;
-import oracle.kv.impl.api.KVStoreImpl;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
 
 /**
  *
  * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
  */
-public class KVHiveRecordReader implements RecordReader<LongWritable, MapWritable> {
+public class KVHiveRecordReader implements RecordReader<LongWritable, KVHiveRow> {
     
-    private KVStore kvstore;
+    private KVHiveStoreHandle storeHandle;
     private Iterator<KeyValueVersion> iter;
     private KeyValueVersion current;
     private long cnt = 0;
+    private long consumed = 0;
     private KVHiveInputSplit inputSplit;
-    private String majorKeyLabels;
-    private String[] majorKeyLabelsArray;
+    private KVHiveColumnMapping columnMapping;
+    private KVHiveValueCodec valueCodec;
+    private int majorKeyCount;
+    private boolean[] projected;
+    private boolean keysOnly;
+    private boolean pivot;
+    private int pivotMaxRecords;
+    private KeyValueVersion pending = null;
+    private Reporter reporter;
+    private final KVHiveScanMetrics metrics = new KVHiveScanMetrics();
+    private long records = 0;
+    private long keyBytesRead = 0;
+    private long valueBytesRead = 0;
+    private long nullsSkipped = 0;
+    private long waitNanos = 0;
     
-    private static final String SERIALIZED_NULL = NullWritable.get().toString();
+    // counters are published every REPORT_INTERVAL rows
+    private static final int REPORT_INTERVAL = 1024;
     
-    public KVHiveRecordReader(InputSplit split, JobConf conf) {
-        inputSplit = (KVHiveInputSplit) split;
-        majorKeyLabels = conf.get(ConfigProperties.KV_MAJOR_KEYS_MAPPING);
-        majorKeyLabelsArray = majorKeyLabels.split(",");
+    private static final byte[] SERIALIZED_NULL =
+        KVHiveColumnMapping.utf8(NullWritable.get().toString());
+    
+    public KVHiveRecordReader(InputSplit split, JobConf conf, Reporter reporter) {
+        init(split, conf, reporter);
         String kvStoreName = inputSplit.getKVStoreName();
         String[] kvHelperHosts = inputSplit.getKVHelperHosts();
-        kvstore = KVStoreFactory.getStore
-            (new KVStoreConfig(kvStoreName, kvHelperHosts));
-        KVStoreImpl kvstoreImpl = (KVStoreImpl) kvstore;
-        int singlePartId = inputSplit.getKVPart();
-        iter = kvstoreImpl.partitionIterator(inputSplit.getDirection(),
-                                             inputSplit.getBatchSize(),
-                                             singlePartId,
-                                             inputSplit.getParentKey(),
-                                             inputSplit.getSubRange(),
-                                             inputSplit.getDepth(),
-                                             inputSplit.getConsistency(),
-                                             inputSplit.getTimeout(),
-                                             inputSplit.getTimeoutUnit());
+        String kvHostPort = ConfigProperties.getKVHostPort(conf);
+        if (kvHostPort != null) {
+            // same helper hosts for every split, so the pooled handle is shared
+            kvHelperHosts = kvHostPort.split(",");
+        }
+        storeHandle = new KVHiveStoreHandle(kvStoreName, kvHelperHosts,
+                                            ConfigProperties.getKVStorePoolIdleTime(conf));
+        if (inputSplit instanceof KVHiveCombinedSplit) {
+            iter = new KVHiveParallelScan(storeHandle,
+                                          (KVHiveCombinedSplit) inputSplit,
+                                          conf,
+                                          pivot ? pivotMaxRecords : 0,
+                                          keysOnly,
+                                          metrics);
+        } else {
+            // with keysOnly, values are not fetched at all; with a complete
+            // major path as parent key, all records live under that key
+            iter = new KVHivePartitionIterator(storeHandle,
+                                               inputSplit.getKVPart(),
+                                               keysOnly,
+                                               inputSplit.getDirection(),
+                                               KVHiveBatchSizer.fromConf(conf, inputSplit.getBatchSize(), 1),
+                                               inputSplit.getParentKey(),
+                                               inputSplit.getSubRange(),
+                                               inputSplit.getDepth(),
+                                               inputSplit.getConsistency(),
+                                               inputSplit.getTimeout(),
+                                               inputSplit.getTimeoutUnit()).
+                setRetries(ConfigProperties.getKVScanRetries(conf),
+                           ConfigProperties.getKVScanRetryBackoff(conf)).
+                setAvoidMaster(ConfigProperties.isKVScanAvoidMaster(conf)).
+                setMetrics(metrics);
+            iter = KVHiveSnapshotCache.open(conf, inputSplit, inputSplit.getKVPart(), keysOnly, iter);
+        }
+        int prefetchBatches = ConfigProperties.getKVPrefetchBatches(conf);
+        if (prefetchBatches > 0 && !(iter instanceof KVHiveParallelScan)) {
+            // fetch the next batches while Hive works on the current one
+            int prefetchBatchSize = inputSplit.getBatchSize() > 0 ? inputSplit.getBatchSize() : 100;
+            iter = new KVHivePrefetchIterator(iter, prefetchBatchSize, prefetchBatches);
+        }
+    }
+
+    /**
+     * Reads the given records instead of scanning the store, for benchmarks.
+     */
+    KVHiveRecordReader(InputSplit split, JobConf conf, Iterator<KeyValueVersion> iter) {
+        init(split, conf, Reporter.NULL);
+        this.iter = iter;
+    }
+
+    private void init(InputSplit split, JobConf conf, Reporter reporter) {
+        this.reporter = (reporter == null) ? Reporter.NULL : reporter;
+        inputSplit = (KVHiveInputSplit) split;
+        columnMapping = KVHiveColumnMapping.fromConf(conf);
+        valueCodec = KVHiveValueCodec.fromConf(conf);
+        majorKeyCount = columnMapping.getMajorKeys().length;
+        projected = getProjectedColumns(conf, columnMapping.getFieldCount());
+        keysOnly = true;
+        for (int i = majorKeyCount; i < projected.length; i++) {
+            keysOnly &= !projected[i];
+        }
+        pivot = ConfigProperties.isKVPivotMode(conf);
+        pivotMaxRecords = ConfigProperties.getKVPivotMaxRecords(conf);
     }
 
     @Override
-    public boolean next(LongWritable k, MapWritable v) throws IOException {
-        boolean ret = iter.hasNext();
-        if (ret) {
+    public boolean next(LongWritable k, KVHiveRow v) throws IOException {
+        if (pending == null && !hasNextRecord()) {
+            return false;
+        }
+        if (pending != null) {
+            current = pending;
+        } else {
             current = iter.next();
-            k.set(cnt);
-            v.clear(); 
-            List<String> majorKeysList = current.getKey().getMajorPath();
-            List<String> minorKeysList = current.getKey().getMinorPath();
-            for (int i=0; i<majorKeyLabelsArray.length; i++) {
-                try {
-                    String key = majorKeyLabelsArray[i];
-                    String value = majorKeysList.get(i);
-                    if (!value.equals(SERIALIZED_NULL)) {
-                        v.put(new Text(key), new Text(value));
-                    }
-                } catch (ArrayIndexOutOfBoundsException e) {
+            consumed++;
+        }
+        pending = null;
+        k.set(cnt);
+        v.clear();
+        valueCodec.reset();
+        byte[] keyBytes = current.getKey().toByteArray();
+        records++;
+        keyBytesRead += keyBytes.length;
+        putMajorKeys(keyBytes, v);
+        putValue(keyBytes, current, v);
+        if (pivot) {
+            // records of one major path are adjacent, merge them into one row
+            int merged = 1;
+            while (merged < pivotMaxRecords && hasNextRecord()) {
+                KeyValueVersion kvv = iter.next();
+                consumed++;
+                byte[] nextKeyBytes = kvv.getKey().toByteArray();
+                if (!sameMajorPath(keyBytes, nextKeyBytes)) {
+                    pending = kvv;
+                    break;
                 }
+                records++;
+                keyBytesRead += nextKeyBytes.length;
+                putValue(nextKeyBytes, kvv, v);
+                merged++;
             }
-            byte[] value = current.getValue().getValue();
-            if (!value.toString().equals(SERIALIZED_NULL)) {
-                if (minorKeysList.isEmpty()) {
-                    v.put(new Text("value"), new Text(value));
+        }
+        cnt++;
+        if (cnt % REPORT_INTERVAL == 0) {
+            report();
+        }
+        return true;
+    }
+
+    /**
+     * iter.hasNext, timing how long the reader waits for the scan.
+     */
+    private boolean hasNextRecord() {
+        long start = System.nanoTime();
+        boolean ret = iter.hasNext();
+        waitNanos += System.nanoTime() - start;
+        return ret;
+    }
+
+    private void report() {
+        metrics.add(KVHiveScanMetrics.Counter.RECORDS, records);
+        metrics.add(KVHiveScanMetrics.Counter.KEY_BYTES, keyBytesRead);
+        metrics.add(KVHiveScanMetrics.Counter.VALUE_BYTES, valueBytesRead);
+        metrics.add(KVHiveScanMetrics.Counter.NULLS_SKIPPED, nullsSkipped);
+        metrics.add(KVHiveScanMetrics.Counter.WAIT_MS, waitNanos / 1000000L);
+        records = 0;
+        keyBytesRead = 0;
+        valueBytesRead = 0;
+        nullsSkipped = 0;
+        waitNanos %= 1000000L;
+        metrics.report(reporter);
+    }
+
+    /**
+     * Columns that the query reads, as pushed by Hive into the job. All
+     * columns are read if Hive did not push a projection.
+     */
+    private static boolean[] getProjectedColumns(JobConf conf, int fieldCount) {
+        boolean[] ret = new boolean[fieldCount];
+        if (conf.get(ColumnProjectionUtils.READ_COLUMN_IDS_CONF_STR) == null) {
+            Arrays.fill(ret, true);
+            return ret;
+        }
+        for (Integer id : ColumnProjectionUtils.getReadColumnIDs(conf)) {
+            if (id >= 0 && id < fieldCount) {
+                ret[id] = true;
+            }
+        }
+        return ret;
+    }
+
+    private void putMajorKeys(byte[] keyBytes, KVHiveRow v) {
+        int majorEnd = Key.getMajorPathLength(keyBytes);
+        int off = 0;
+        for (int i = 0; i < majorKeyCount && off <= majorEnd; i++) {
+            int len = Key.getComponentLength(keyBytes, off);
+            if (projected[i]) {
+                if (isSerializedNull(keyBytes, off, len)) {
+                    nullsSkipped++;
                 } else {
-                    for (int j=0; j<minorKeysList.size(); j++) {
-                        String key = minorKeysList.get(j);
-                        v.put(new Text(key), new Text(value));
-                    }
+                    v.set(i, keyBytes, off, len);
                 }
             }
-            cnt++;
-            return ret;
-        } else {
-            return false;
-        }  
+            off += len + 1;
+        }
+    }
+
+    private void putValue(byte[] keyBytes, KeyValueVersion kvv, KVHiveRow v) throws IOException {
+        if (keysOnly) {
+            return;
+        }
+        byte[] value = kvv.getValue().getValue();
+        int valueStart = 0;
+        int valueLen = value.length;
+        valueBytesRead += value.length;
+        if (isSerializedNull(value, 0, value.length)) {
+            nullsSkipped++;
+            return;
+        }
+        if (valueCodec.isEnabled() && KVHiveValueCodec.isCompressed(value, 0, value.length)) {
+            // decompressed into a buffer that is reused from row to row
+            value = valueCodec.decompress(value, 0, value.length);
+            valueStart = valueCodec.getStart();
+            valueLen = valueCodec.getLength();
+        }
+        int off = Key.getMajorPathLength(keyBytes) + 1;
+        if (off >= keyBytes.length) {
+            int col = columnMapping.getValueColumn();
+            if (col >= 0) {
+                putValueColumns(col, value, valueStart, valueLen, v);
+            }
+            return;
+        }
+        while (off <= keyBytes.length) {
+            int len = Key.getComponentLength(keyBytes, off);
+            int col = columnMapping.findMinorKeyColumn(keyBytes, off, len);
+            if (col >= 0) {
+                putValueColumns(col, value, valueStart, valueLen, v);
+            }
+            off += len + 1;
+        }
+    }
+
+    /**
+     * Sets column col to the value, or with a value format, the columns
+     * starting at col to the projected fields of the value.
+     */
+    private void putValueColumns(int col, byte[] value, int start, int len, KVHiveRow v) {
+        KVHiveValueFormat valueFormat = columnMapping.getValueFormat();
+        if (valueFormat != null && col == columnMapping.getValueColumn()) {
+            valueFormat.parse(value, start, len, projected, v, col);
+        } else if (projected[col]) {
+            v.set(col, value, start, len);
+        }
+    }
+
+    private static boolean sameMajorPath(byte[] a, byte[] b) {
+        int len = Key.getMajorPathLength(a);
+        return len == Key.getMajorPathLength(b) &&
+               KVHiveColumnMapping.regionEquals(a, b, 0, len);
+    }
+
+    private static boolean isSerializedNull(byte[] b, int start, int len) {
+        return len == SERIALIZED_NULL.length &&
+               KVHiveColumnMapping.regionEquals(SERIALIZED_NULL, b, start, len);
     }
 
     @Override
@@ -113,8 +302,8 @@ public class KVHiveRecordReader implements RecordReader<LongWritable, MapWritabl
     }
 
     @Override
-    public MapWritable createValue() {
-        return new MapWritable();
+    public KVHiveRow createValue() {
+        return new KVHiveRow(columnMapping.getFieldCount());
     }
 
     @Override
@@ -124,12 +313,24 @@ public class KVHiveRecordReader implements RecordReader<LongWritable, MapWritabl
 
     @Override
     public void close() throws IOException {
-        kvstore.close();
+        report();
+        if (iter instanceof Closeable) {
+            ((Closeable) iter).close();
+        }
+        if (storeHandle != null) {
+            storeHandle.release();
+        }
+        valueCodec.close();
     }
 
     @Override
     public float getProgress() throws IOException {
-        return inputSplit.getLength() > 0 ? cnt / (float) inputSplit.getLength() : 1.0f;
+        long estimatedRecords = inputSplit.getEstimatedRecords();
+        if (estimatedRecords <= 0) {
+            return 0.0f;
+        }
+        // the estimate is sampled, never report a finished split too early
+        return Math.min(0.99f, consumed / (float) estimatedRecords);
     }
     
 }
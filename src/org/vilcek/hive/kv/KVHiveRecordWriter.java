@@ -0,0 +1,171 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import oracle.kv.KVStore;
+import oracle.kv.Key;
+import oracle.kv.Operation;
+import oracle.kv.OperationFactory;
+import oracle.kv.Value;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Writes rows to the KV store. Every value column of a row becomes a put
+ * under the row's major path; puts are buffered and grouped by major path,
+ * and each group is sent as one KVStore.execute call, so all the values of
+ * one major path are written atomically in a single round trip. A put to a
+ * key that is already buffered replaces the buffered one, since an execute
+ * call can not hold two operations on the same key. The calls
+ * are made by a KVHiveWritePipeline, so that all replication groups are
+ * written to concurrently.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveRecordWriter implements org.apache.hadoop.hive.ql.exec.FileSinkOperator.RecordWriter,
+                                           org.apache.hadoop.mapred.RecordWriter<NullWritable, KVHiveRow> {
+
+    private static final String SERIALIZED_NULL = NullWritable.get().toString();
+
+    private final KVStore kvstore;
+    private final OperationFactory operationFactory;
+    private final KVHiveWritePipeline pipeline;
+    private final KVHiveColumnMapping columnMapping;
+    private final KVHiveValueCodec valueCodec;
+    private final int majorKeyCount;
+    private final int batchSize;
+    private final int bufferSize;
+    private final Map<List<String>, Map<Key, Operation>> buffer =
+        new LinkedHashMap<List<String>, Map<Key, Operation>>();
+    private int buffered = 0;
+
+    public KVHiveRecordWriter(JobConf conf) throws IOException {
+        columnMapping = KVHiveColumnMapping.fromConf(conf);
+        valueCodec = KVHiveValueCodec.fromConf(conf);
+        majorKeyCount = columnMapping.getMajorKeys().length;
+        batchSize = Math.max(1, ConfigProperties.getKVWriteBatchSize(conf));
+        bufferSize = Math.max(1, ConfigProperties.getKVWriteBufferSize(conf));
+        String kvHostPort = ConfigProperties.getKVHostPort(conf);
+        String kvStoreName = ConfigProperties.getKVName(conf);
+        if (kvHostPort == null || kvStoreName == null) {
+            throw new IOException(ConfigProperties.KV_HOST_PORT + " and " +
+                                  ConfigProperties.KV_NAME + " must be set");
+        }
+        kvstore = KVHiveStorePool.acquire(kvStoreName, kvHostPort.split(","),
+                                          ConfigProperties.getKVStorePoolIdleTime(conf));
+        operationFactory = kvstore.getOperationFactory();
+        pipeline = new KVHiveWritePipeline(kvstore,
+                                           ConfigProperties.getKVWriteThreads(conf),
+                                           ConfigProperties.getKVWriteQueueSize(conf));
+    }
+
+    @Override
+    public void write(Writable w) throws IOException {
+        KVHiveRow row = (KVHiveRow) w;
+        List<String> majorPath = new ArrayList<String>(majorKeyCount);
+        for (int i = 0; i < majorKeyCount; i++) {
+            majorPath.add(row.isNull(i) ? SERIALIZED_NULL : toString(row, i));
+        }
+        Map<Key, Operation> ops = buffer.get(majorPath);
+        if (ops == null) {
+            ops = new LinkedHashMap<Key, Operation>();
+            buffer.put(majorPath, ops);
+        }
+        String[] minorKeys = columnMapping.getMinorKeys();
+        for (int i = 0; i < minorKeys.length; i++) {
+            int col = majorKeyCount + i;
+            if (row.isNull(col)) {
+                continue;
+            }
+            Key key = columnMapping.hasMinorKeys() ?
+                      Key.createKey(majorPath, minorKeys[i]) :
+                      Key.createKey(majorPath);
+            byte[] b = valueCodec.compress(row.getBytes(col), row.getStart(col), row.getLength(col));
+            if (ops.put(key, operationFactory.createPut(key, Value.createValue(b))) == null) {
+                buffered++;
+            }
+        }
+        if (ops.isEmpty()) {
+            buffer.remove(majorPath);
+        }
+        if (buffered >= bufferSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(NullWritable k, KVHiveRow v) throws IOException {
+        write(v);
+    }
+
+    /**
+     * Queues the buffered puts, one execute call per major path and at most
+     * batchSize operations per call.
+     */
+    public void flush() throws IOException {
+        for (Map.Entry<List<String>, Map<Key, Operation>> group : buffer.entrySet()) {
+            byte[] majorKeyBytes = Key.createKey(group.getKey()).toByteArray();
+            List<Operation> ops = new ArrayList<Operation>(group.getValue().values());
+            for (int i = 0; i < ops.size(); i += batchSize) {
+                pipeline.submit(majorKeyBytes,
+                                new ArrayList<Operation>(ops.subList(i, Math.min(i + batchSize, ops.size()))));
+            }
+        }
+        buffer.clear();
+        buffered = 0;
+    }
+
+    @Override
+    public void close(boolean abort) throws IOException {
+        try {
+            if (abort) {
+                pipeline.abort();
+            } else {
+                flush();
+                pipeline.close();
+            }
+        } finally {
+            buffer.clear();
+            valueCodec.close();
+            KVHiveStorePool.release(kvstore);
+        }
+    }
+
+    @Override
+    public void close(Reporter reporter) throws IOException {
+        close(false);
+    }
+
+    private static String toString(KVHiveRow row, int col) throws IOException {
+        try {
+            return new String(row.getBytes(col), row.getStart(col), row.getLength(col), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
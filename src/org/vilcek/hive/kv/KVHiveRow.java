@@ -0,0 +1,149 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A reusable row indexed by column ordinal. Every column is a slice of a
+ * byte array owned by the KV record it came from (key component or value),
+ * so filling a row neither copies nor decodes anything. Column objects are
+ * only materialized when Hive asks for them.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveRow implements Writable {
+
+    private byte[][] bytes;
+    private int[] starts;
+    private int[] lengths;
+    private Object[] values;
+    private final List<Object> fields = new ArrayList<Object>();
+
+    public KVHiveRow() {
+        this(0);
+    }
+
+    public KVHiveRow(int fieldCount) {
+        resize(fieldCount);
+    }
+
+    private void resize(int fieldCount) {
+        bytes = new byte[fieldCount][];
+        starts = new int[fieldCount];
+        lengths = new int[fieldCount];
+        values = new Object[fieldCount];
+        Arrays.fill(lengths, -1);
+    }
+
+    public int getFieldCount() {
+        return lengths.length;
+    }
+
+    public void clear() {
+        Arrays.fill(bytes, null);
+        Arrays.fill(lengths, -1);
+    }
+
+    public void set(int col, byte[] b, int start, int len) {
+        bytes[col] = b;
+        starts[col] = start;
+        lengths[col] = len;
+    }
+
+    public void setNull(int col) {
+        bytes[col] = null;
+        lengths[col] = -1;
+    }
+
+    public boolean isNull(int col) {
+        return lengths[col] < 0;
+    }
+
+    public byte[] getBytes(int col) {
+        return bytes[col];
+    }
+
+    public int getStart(int col) {
+        return starts[col];
+    }
+
+    public int getLength(int col) {
+        return lengths[col];
+    }
+
+    /**
+     * Returns the column decoded into a writable that is reused from row to
+     * row, or null.
+     */
+    public Object getField(int col, KVHiveColumnDecoder decoder) {
+        if (lengths[col] < 0) {
+            return null;
+        }
+        Object v = decoder.decode(bytes[col], starts[col], lengths[col], values[col]);
+        if (v != null) {
+            values[col] = v;
+        }
+        return v;
+    }
+
+    List<Object> getFieldsAsList(KVHiveColumnDecoder[] decoders) {
+        fields.clear();
+        for (int i = 0; i < lengths.length; i++) {
+            fields.add(getField(i, decoders[i]));
+        }
+        return fields;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            WritableUtils.writeVInt(out, lengths[i]);
+            if (lengths[i] > 0) {
+                out.write(bytes[i], starts[i], lengths[i]);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int fieldCount = WritableUtils.readVInt(in);
+        if (fieldCount != lengths.length) {
+            resize(fieldCount);
+        }
+        for (int i = 0; i < fieldCount; i++) {
+            int len = WritableUtils.readVInt(in);
+            if (len < 0) {
+                setNull(i);
+                continue;
+            }
+            byte[] b = new byte[len];
+            in.readFully(b);
+            set(i, b, 0, len);
+        }
+    }
+
+}
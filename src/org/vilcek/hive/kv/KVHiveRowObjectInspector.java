@@ -0,0 +1,115 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+
+/**
+ * Inspects a KVHiveRow lazily: a column is only turned into a Hive object
+ * when Hive reads it.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveRowObjectInspector extends StructObjectInspector {
+
+    static class Field implements StructField {
+        private final String name;
+        private final int index;
+        private final ObjectInspector oi;
+
+        Field(String name, int index, ObjectInspector oi) {
+            this.name = name;
+            this.index = index;
+            this.oi = oi;
+        }
+
+        @Override
+        public String getFieldName() {
+            return name;
+        }
+
+        @Override
+        public ObjectInspector getFieldObjectInspector() {
+            return oi;
+        }
+
+        int getIndex() {
+            return index;
+        }
+    }
+
+    private final List<Field> fields;
+    private final KVHiveColumnDecoder[] decoders;
+
+    public KVHiveRowObjectInspector(List<String> columnNames, KVHiveColumnDecoder[] decoders) {
+        this.decoders = decoders;
+        fields = new ArrayList<Field>(columnNames.size());
+        for (int i = 0; i < columnNames.size(); i++) {
+            fields.add(new Field(columnNames.get(i).toLowerCase(), i,
+                                 decoders[i].getObjectInspector()));
+        }
+    }
+
+    @Override
+    public List<? extends StructField> getAllStructFieldRefs() {
+        return fields;
+    }
+
+    @Override
+    public StructField getStructFieldRef(String fieldName) {
+        for (Field f : fields) {
+            if (f.getFieldName().equalsIgnoreCase(fieldName)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object getStructFieldData(Object data, StructField fieldRef) {
+        if (data == null) {
+            return null;
+        }
+        int col = ((Field) fieldRef).getIndex();
+        return ((KVHiveRow) data).getField(col, decoders[col]);
+    }
+
+    @Override
+    public List<Object> getStructFieldsDataAsList(Object data) {
+        if (data == null) {
+            return null;
+        }
+        return ((KVHiveRow) data).getFieldsAsList(decoders);
+    }
+
+    @Override
+    public String getTypeName() {
+        return ObjectInspectorUtils.getStandardStructTypeName(this);
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STRUCT;
+    }
+
+}
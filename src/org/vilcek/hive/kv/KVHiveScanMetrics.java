@@ -0,0 +1,117 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Scan statistics of one record reader, updated by the scan threads once
+ * per batch and published as Hadoop counters by the reader thread. FETCH_MS
+ * is the time spent waiting for the store and WAIT_MS the time the reader
+ * waited for records, so a task whose WAIT_MS is low against its run time
+ * is limited by Hive rather than by the store. Fetch latencies are counted
+ * in powers of ten buckets.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveScanMetrics {
+
+    public static enum Counter {
+        RECORDS,
+        KEY_BYTES,
+        VALUE_BYTES,
+        NULLS_SKIPPED,
+        BATCHES,
+        RETRIES,
+        FETCH_MS,
+        WAIT_MS,
+        PARTITIONS,
+        PARTITION_SCAN_MS,
+        FETCH_UNDER_1MS,
+        FETCH_UNDER_10MS,
+        FETCH_UNDER_100MS,
+        FETCH_UNDER_1S,
+        FETCH_OVER_1S
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private final AtomicLongArray values = new AtomicLongArray(COUNTERS.length);
+    // FETCH_MS is summed in nanoseconds, most batches taking less than 1 ms
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final long[] reported = new long[COUNTERS.length];
+
+    public void add(Counter c, long n) {
+        values.addAndGet(c.ordinal(), n);
+    }
+
+    public long get(Counter c) {
+        if (c == Counter.FETCH_MS) {
+            return fetchNanos.get() / NANOS_PER_MS;
+        }
+        return values.get(c.ordinal());
+    }
+
+    /**
+     * Counts one batch fetched from the store in elapsedNanos.
+     */
+    public void fetched(long elapsedNanos) {
+        long ms = elapsedNanos / NANOS_PER_MS;
+        add(Counter.BATCHES, 1);
+        fetchNanos.addAndGet(elapsedNanos);
+        Counter bucket;
+        if (ms < 1) {
+            bucket = Counter.FETCH_UNDER_1MS;
+        } else if (ms < 10) {
+            bucket = Counter.FETCH_UNDER_10MS;
+        } else if (ms < 100) {
+            bucket = Counter.FETCH_UNDER_100MS;
+        } else if (ms < 1000) {
+            bucket = Counter.FETCH_UNDER_1S;
+        } else {
+            bucket = Counter.FETCH_OVER_1S;
+        }
+        add(bucket, 1);
+    }
+
+    /**
+     * Counts a partition scanned to the end in elapsedMs.
+     */
+    public void partitionScanned(long elapsedMs) {
+        add(Counter.PARTITIONS, 1);
+        add(Counter.PARTITION_SCAN_MS, elapsedMs);
+    }
+
+    /**
+     * Adds what changed since the last call to the task counters. Only
+     * called from the reader thread.
+     */
+    public void report(Reporter reporter) {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            long v = get(COUNTERS[i]);
+            if (v != reported[i]) {
+                reporter.incrCounter(COUNTERS[i], v - reported[i]);
+                reported[i] = v;
+            }
+        }
+    }
+
+}
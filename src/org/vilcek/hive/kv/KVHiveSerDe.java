@@ -19,14 +19,17 @@ package org.vilcek.hive.kv;
 
 import java.util.*;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde.Constants;
 import org.apache.hadoop.hive.serde2.SerDe;
 import org.apache.hadoop.hive.serde2.SerDeException;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.io.MapWritable;
-import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 
@@ -36,50 +39,86 @@ import org.apache.hadoop.io.Writable;
  */
 public class KVHiveSerDe implements SerDe {
     
-    private String kvMajorKeysMapping, kvMinorKeysMapping;
-    private String[] kvMajorKeysMappingArray, kvMinorKeysMappingArray;
-    private List<String> majorMinorKeys, row;
-    private int fieldCount;
+    private KVHiveColumnMapping columnMapping;
     private StructObjectInspector objectInspector;
+    private String[] columnTypes;
+    private boolean[] binary;
+    private KVHiveRow serializedRow;
+    private KVHiveValueFormat valueFormat;
+    private int valueColumn;
+    private byte[][] valueFields;
+    private boolean[] valueFieldQuoted;
 
     @Override
     public void initialize(Configuration c, Properties prprts) throws SerDeException {
-        kvMajorKeysMapping = prprts.getProperty(ConfigProperties.KV_MAJOR_KEYS_MAPPING);
-        kvMajorKeysMappingArray = kvMajorKeysMapping.split(","); 
-        kvMinorKeysMapping = prprts.getProperty(ConfigProperties.KV_MINOR_KEYS_MAPPING);
-        if (kvMinorKeysMapping != null) {
-            kvMinorKeysMappingArray = kvMinorKeysMapping.split(",");
-        } else {
-            kvMinorKeysMappingArray = new String[1];
-            kvMinorKeysMappingArray[0] = "value";
+        try {
+            columnMapping = KVHiveColumnMapping.fromProperties(prprts);
+            columnMapping.checkBinaryColumns(prprts.getProperty(ConfigProperties.KV_BINARY_COLUMNS));
+        } catch (IllegalArgumentException IAE) {
+            throw new SerDeException(IAE.getMessage());
         }
-        fieldCount = kvMajorKeysMappingArray.length + kvMinorKeysMappingArray.length;
-        majorMinorKeys = new ArrayList<String>(fieldCount);
-        majorMinorKeys.addAll(Arrays.asList(kvMajorKeysMappingArray));
-        majorMinorKeys.addAll(Arrays.asList(kvMinorKeysMappingArray));
-        List<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>(fieldCount);
-        for (int i = 0; i < fieldCount; i++) {
-            fieldOIs.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        valueFormat = columnMapping.getValueFormat();
+        valueColumn = columnMapping.getValueColumn();
+        valueFields = new byte[columnMapping.getValueFieldCount()][];
+        valueFieldQuoted = new boolean[valueFields.length];
+        List<String> columnNames = columnMapping.getColumnNames();
+        Map<String, String> declaredTypes = getDeclaredTypes(prprts);
+        Set<String> binaryColumns = new HashSet<String>();
+        String binaryColumnsProp = prprts.getProperty(ConfigProperties.KV_BINARY_COLUMNS);
+        if (binaryColumnsProp != null) {
+            for (String col : binaryColumnsProp.split(",")) {
+                binaryColumns.add(col.toLowerCase());
+            }
+        }
+        KVHiveColumnDecoder[] decoders = new KVHiveColumnDecoder[columnNames.size()];
+        columnTypes = new String[decoders.length];
+        binary = new boolean[decoders.length];
+        for (int i = 0; i < decoders.length; i++) {
+            String name = columnNames.get(i).toLowerCase();
+            String type = declaredTypes.get(name);
+            if (type == null) {
+                type = Constants.STRING_TYPE_NAME;
+            }
+            columnTypes[i] = type;
+            // fields of a structured value are always text
+            binary[i] = binaryColumns.contains(name) && !isValueField(i);
+            if (isValueField(i)) {
+                valueFieldQuoted[i - valueColumn] = type.equals(Constants.STRING_TYPE_NAME);
+            }
+            decoders[i] = KVHiveColumnDecoder.forType(type, binary[i]);
+        }
+        objectInspector = new KVHiveRowObjectInspector(columnNames, decoders);
+        serializedRow = new KVHiveRow(columnMapping.getStorageFieldCount());
+    }
+
+    private boolean isValueField(int col) {
+        return valueFormat != null && col >= valueColumn && col < valueColumn + valueFields.length;
+    }
+
+    /**
+     * Maps the lower case name of every column declared in the Hive table to
+     * its type name.
+     */
+    private static Map<String, String> getDeclaredTypes(Properties prprts) {
+        Map<String, String> ret = new HashMap<String, String>();
+        String columns = prprts.getProperty(Constants.LIST_COLUMNS);
+        String columnTypes = prprts.getProperty(Constants.LIST_COLUMN_TYPES);
+        if (columns == null || columnTypes == null ||
+            columns.length() == 0 || columnTypes.length() == 0) {
+            return ret;
+        }
+        String[] names = columns.split(",");
+        List<TypeInfo> types = TypeInfoUtils.getTypeInfosFromTypeString(columnTypes);
+        for (int i = 0; i < names.length && i < types.size(); i++) {
+            ret.put(names[i].toLowerCase(), types.get(i).getTypeName());
         }
-        objectInspector = ObjectInspectorFactory.getStandardStructObjectInspector(majorMinorKeys, fieldOIs);
-        row = new ArrayList<String>(fieldCount);
+        return ret;
     }
 
     @Override
     public Object deserialize(Writable wrtbl) throws SerDeException {
-        MapWritable input = (MapWritable) wrtbl;
-        Text t = new Text();
-        row.clear();
-        for (int i = 0; i < fieldCount; i++) {
-            t.set(majorMinorKeys.get(i));
-            Writable value = input.get(t);
-            if (value != null && !NullWritable.get().equals(value)) {
-                row.add(value.toString());
-            } else {
-                row.add(null);
-            }
-        }
-        return row;
+        // columns are decoded lazily by the object inspector
+        return wrtbl;
     }
 
     @Override
@@ -89,12 +128,87 @@ public class KVHiveSerDe implements SerDe {
 
     @Override
     public Class<? extends Writable> getSerializedClass() {
-        return MapWritable.class;
+        return KVHiveRow.class;
     }
 
     @Override
     public Writable serialize(Object o, ObjectInspector oi) throws SerDeException {
-        throw new UnsupportedOperationException("Not supported yet.");
-    } 
+        if (oi.getCategory() != ObjectInspector.Category.STRUCT) {
+            throw new SerDeException(getClass().toString() + " can only serialize struct types, but we got: " +
+                                     oi.getTypeName());
+        }
+        StructObjectInspector soi = (StructObjectInspector) oi;
+        List<? extends StructField> fields = soi.getAllStructFieldRefs();
+        if (fields.size() != columnTypes.length) {
+            throw new SerDeException("Expected " + columnTypes.length + " columns but got " +
+                                     fields.size());
+        }
+        serializedRow.clear();
+        Arrays.fill(valueFields, null);
+        boolean hasValueFields = false;
+        for (int i = 0; i < columnTypes.length; i++) {
+            StructField field = fields.get(i);
+            Object data = soi.getStructFieldData(o, field);
+            if (data == null) {
+                continue;
+            }
+            ObjectInspector foi = field.getFieldObjectInspector();
+            if (foi.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new SerDeException("Column " + field.getFieldName() + " of type " +
+                                         foi.getTypeName() + " can not be stored");
+            }
+            byte[] b = binary[i] ?
+                       toBinary(data, (PrimitiveObjectInspector) foi, columnTypes[i]) :
+                       toText(data, (PrimitiveObjectInspector) foi);
+            if (isValueField(i)) {
+                valueFields[i - valueColumn] = b;
+                hasValueFields = true;
+            } else {
+                serializedRow.set(columnMapping.toStorageColumn(i), b, 0, b.length);
+            }
+        }
+        if (hasValueFields) {
+            byte[] b;
+            try {
+                b = valueFormat.format(valueFields, valueFieldQuoted);
+            } catch (IllegalArgumentException IAE) {
+                throw new SerDeException(IAE.getMessage());
+            }
+            serializedRow.set(columnMapping.toStorageColumn(valueColumn), b, 0, b.length);
+        }
+        return serializedRow;
+    }
+
+    private static byte[] toText(Object data, PrimitiveObjectInspector poi) {
+        if (poi instanceof StringObjectInspector) {
+            Text t = ((StringObjectInspector) poi).getPrimitiveWritableObject(data);
+            return Arrays.copyOf(t.getBytes(), t.getLength());
+        }
+        return KVHiveColumnMapping.utf8(String.valueOf(poi.getPrimitiveJavaObject(data)));
+    }
+
+    private static byte[] toBinary(Object data, PrimitiveObjectInspector poi, String type) {
+        if (type.equals(Constants.INT_TYPE_NAME)) {
+            byte[] b = new byte[4];
+            KVHiveColumnDecoder.writeInt(b, 0, PrimitiveObjectInspectorUtils.getInt(data, poi));
+            return b;
+        } else if (type.equals(Constants.BIGINT_TYPE_NAME)) {
+            byte[] b = new byte[8];
+            KVHiveColumnDecoder.writeLong(b, 0, PrimitiveObjectInspectorUtils.getLong(data, poi));
+            return b;
+        } else if (type.equals(Constants.DOUBLE_TYPE_NAME)) {
+            byte[] b = new byte[8];
+            KVHiveColumnDecoder.writeLong(b, 0, Double.doubleToLongBits(
+                                          PrimitiveObjectInspectorUtils.getDouble(data, poi)));
+            return b;
+        } else if (type.equals(Constants.BOOLEAN_TYPE_NAME)) {
+            return new byte[] {(byte) (PrimitiveObjectInspectorUtils.getBoolean(data, poi) ? 1 : 0)};
+        }
+        return toText(data, poi);
+    }
+    
+    String[] getMajorKeys() {
+        return columnMapping.getMajorKeys();
+    }
     
 }
@@ -0,0 +1,309 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import oracle.kv.Key;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.Value;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Optional cache of partition scans on HDFS or local disk. The first full
+ * scan of a partition, under given key bounds, is written to a snapshot
+ * file as it streams by; later scans with the same bounds read the snapshot
+ * instead of the store until it is older than kv.snapshot.ttl.ms, or until
+ * kv.snapshot.epoch changes. A snapshot is only published, by renaming a
+ * temporary file, once its scan has completed, so a partial file is never
+ * read. Snapshots do not keep record versions.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveSnapshotCache {
+
+    private static final int MAGIC = 0x4b565331; // "KVS1"
+    private static final int END = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Returns the records of one partition of the split from a fresh
+     * snapshot if there is one, or else the store scan, recording it into a
+     * new snapshot if caching is enabled.
+     */
+    public static Iterator<KeyValueVersion> open(Configuration conf, KVHiveInputSplit split,
+                                                 int partId, boolean keysOnly,
+                                                 Iterator<KeyValueVersion> scan) {
+        String dir = ConfigProperties.getKVSnapshotDir(conf);
+        if (dir == null) {
+            return scan;
+        }
+        long ttlMs = ConfigProperties.getKVSnapshotTTL(conf);
+        String epoch = ConfigProperties.getKVSnapshotEpoch(conf);
+        Path path = getPath(dir, split, partId, keysOnly, epoch);
+        try {
+            FileSystem fs = path.getFileSystem(conf);
+            if (isFresh(fs, path, ttlMs)) {
+                return new SnapshotReader(fs, path, keysOnly);
+            }
+            if (keysOnly) {
+                // a snapshot with values serves a keys only scan as well
+                Path full = getPath(dir, split, partId, false, epoch);
+                if (isFresh(fs, full, ttlMs)) {
+                    return new SnapshotReader(fs, full, true);
+                }
+            }
+            return new SnapshotWriter(fs, path, keysOnly, scan);
+        } catch (IOException IOE) {
+            System.err.println("Snapshot " + path + " not used: " + IOE.getMessage());
+            return scan;
+        }
+    }
+
+    private static boolean isFresh(FileSystem fs, Path path, long ttlMs) throws IOException {
+        if (!fs.exists(path)) {
+            return false;
+        }
+        FileStatus status = fs.getFileStatus(path);
+        return System.currentTimeMillis() - status.getModificationTime() < ttlMs;
+    }
+
+    /**
+     * The snapshot of a partition scan lives in a directory per store, in a
+     * file named after a digest of everything that determines its records.
+     */
+    private static Path getPath(String dir, KVHiveInputSplit split, int partId,
+                                boolean keysOnly, String epoch) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(partId).append('|');
+        sb.append(keysOnly).append('|');
+        sb.append(split.getDirection()).append('|');
+        sb.append(split.getDepth()).append('|');
+        sb.append(split.getParentKey() == null ? "" : split.getParentKey().toString()).append('|');
+        sb.append(split.getSubRange() == null ? "" : split.getSubRange().toString()).append('|');
+        sb.append(epoch);
+        return new Path(new Path(dir, split.getKVStoreName()), digest(sb.toString()) + ".snap");
+    }
+
+    private static String digest(String s) {
+        try {
+            byte[] md5 = MessageDigest.getInstance("MD5").digest(KVHiveColumnMapping.utf8(s));
+            StringBuilder sb = new StringBuilder(md5.length * 2);
+            for (byte b : md5) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException NSAE) {
+            throw new IllegalStateException(NSAE);
+        }
+    }
+
+    /**
+     * Streams the records of a published snapshot.
+     */
+    private static class SnapshotReader implements Iterator<KeyValueVersion>, Closeable {
+
+        private final Path path;
+        private final boolean keysOnly;
+        private final DataInputStream in;
+        private KeyValueVersion next = null;
+        private boolean done = false;
+
+        SnapshotReader(FileSystem fs, Path path, boolean keysOnly) throws IOException {
+            this.path = path;
+            this.keysOnly = keysOnly;
+            in = new DataInputStream(new BufferedInputStream(fs.open(path), BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("not a snapshot file");
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = read();
+                } catch (IOException IOE) {
+                    throw new IllegalStateException("Can not read snapshot " + path, IOE);
+                }
+            }
+            return next != null;
+        }
+
+        private KeyValueVersion read() throws IOException {
+            int keyLen = WritableUtils.readVInt(in);
+            if (keyLen == END) {
+                done = true;
+                in.close();
+                return null;
+            }
+            byte[] key = new byte[keyLen];
+            in.readFully(key);
+            int valueLen = WritableUtils.readVInt(in);
+            Value value = KVHivePartitionIterator.EMPTY_VALUE;
+            if (valueLen > 0 && !keysOnly) {
+                byte[] b = new byte[valueLen];
+                in.readFully(b);
+                value = Value.fromByteArray(b);
+            } else {
+                WritableUtils.skipFully(in, valueLen);
+            }
+            return new KeyValueVersion(Key.fromByteArray(key), value,
+                                       KVHivePartitionIterator.NO_VERSION);
+        }
+
+        @Override
+        public KeyValueVersion next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            KeyValueVersion ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("read-only iterator");
+        }
+
+        @Override
+        public void close() throws IOException {
+            done = true;
+            in.close();
+        }
+    }
+
+    /**
+     * Passes the records of a store scan through while writing them to a
+     * temporary file, which becomes the snapshot when the scan is complete
+     * and is dropped when the scan is closed early. A failure to write only
+     * loses the snapshot, never the scan.
+     */
+    private static class SnapshotWriter implements Iterator<KeyValueVersion>, Closeable {
+
+        private final FileSystem fs;
+        private final Path path;
+        private final Path tmpPath;
+        private final boolean keysOnly;
+        private final Iterator<KeyValueVersion> scan;
+        private DataOutputStream out;
+
+        SnapshotWriter(FileSystem fs, Path path, boolean keysOnly,
+                       Iterator<KeyValueVersion> scan) throws IOException {
+            this.fs = fs;
+            this.path = path;
+            this.tmpPath = new Path(path.getParent(), "." + path.getName() + "." + UUID.randomUUID());
+            this.keysOnly = keysOnly;
+            this.scan = scan;
+            out = new DataOutputStream(new BufferedOutputStream(fs.create(tmpPath, true), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean ret = scan.hasNext();
+            if (!ret && out != null) {
+                publish();
+            }
+            return ret;
+        }
+
+        @Override
+        public KeyValueVersion next() {
+            KeyValueVersion kvv = scan.next();
+            if (out != null) {
+                try {
+                    byte[] key = kvv.getKey().toByteArray();
+                    WritableUtils.writeVInt(out, key.length);
+                    out.write(key);
+                    if (keysOnly) {
+                        WritableUtils.writeVInt(out, 0);
+                    } else {
+                        byte[] value = kvv.getValue().toByteArray();
+                        WritableUtils.writeVInt(out, value.length);
+                        out.write(value);
+                    }
+                } catch (IOException IOE) {
+                    System.err.println("Snapshot " + path + " dropped: " + IOE.getMessage());
+                    discard();
+                }
+            }
+            return kvv;
+        }
+
+        private void publish() {
+            try {
+                WritableUtils.writeVInt(out, END);
+                out.close();
+                out = null;
+                fs.delete(path, false);
+                if (!fs.rename(tmpPath, path)) {
+                    throw new IOException("can not rename " + tmpPath);
+                }
+            } catch (IOException IOE) {
+                System.err.println("Snapshot " + path + " not published: " + IOE.getMessage());
+                discard();
+            }
+        }
+
+        private void discard() {
+            DataOutputStream o = out;
+            out = null;
+            try {
+                if (o != null) {
+                    o.close();
+                }
+                fs.delete(tmpPath, false);
+            } catch (IOException IOE) {
+                System.err.println("Can not delete " + tmpPath + ": " + IOE.getMessage());
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("read-only iterator");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                discard();
+            }
+            if (scan instanceof Closeable) {
+                ((Closeable) scan).close();
+            }
+        }
+    }
+
+}
@@ -23,14 +23,18 @@ import java.util.Properties;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.HiveMetaHook;
 import org.apache.hadoop.hive.ql.metadata.HiveStorageHandler;
+import org.apache.hadoop.hive.ql.metadata.HiveStoragePredicateHandler;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
 import org.apache.hadoop.hive.ql.plan.TableDesc;
+import org.apache.hadoop.hive.serde2.Deserializer;
 import org.apache.hadoop.hive.serde2.SerDe;
+import org.apache.hadoop.mapred.JobConf;
 
 /**
  *
  * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
  */
-public class KVHiveStorageHandler implements HiveStorageHandler {
+public class KVHiveStorageHandler implements HiveStorageHandler, HiveStoragePredicateHandler {
     
     private Configuration conf = null;
 
@@ -51,8 +55,7 @@ public class KVHiveStorageHandler implements HiveStorageHandler {
 
     @Override
     public HiveMetaHook getMetaHook() {
-        //not supported yet
-        return null;
+        return new KVHiveMetaHook();
     }
 
     @Override
@@ -67,6 +70,12 @@ public class KVHiveStorageHandler implements HiveStorageHandler {
         
     }
 
+    @Override
+    public DecomposedPredicate decomposePredicate(JobConf jc, Deserializer d, ExprNodeDesc predicate) {
+        String[] majorKeys = ((KVHiveSerDe) d).getMajorKeys();
+        return KVHiveKeyPredicate.decompose(majorKeys, predicate);
+    }
+
     @Override
     public void setConf(Configuration c) {
         this.conf = c;
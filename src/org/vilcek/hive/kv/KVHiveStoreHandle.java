@@ -0,0 +1,77 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import oracle.kv.KVStore;
+
+/**
+ * A pooled KVStore handle that can be swapped for a fresh connection when
+ * the current one keeps failing. Scans that share the handle pick up the
+ * new connection on their next request, and so do other handles of the
+ * same store, which find it invalidated in KVHiveStorePool.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveStoreHandle {
+
+    private final String kvStoreName;
+    private final String[] kvHelperHosts;
+    private final long idleTimeoutMs;
+    private KVStore store;
+
+    public KVHiveStoreHandle(String kvStoreName, String[] kvHelperHosts, long idleTimeoutMs) {
+        this.kvStoreName = kvStoreName;
+        this.kvHelperHosts = kvHelperHosts;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.store = KVHiveStorePool.acquire(kvStoreName, kvHelperHosts, idleTimeoutMs);
+    }
+
+    public synchronized KVStore get() {
+        if (store != null && KVHiveStorePool.isInvalid(store)) {
+            swap();
+        }
+        return store;
+    }
+
+    /**
+     * Replaces the failed store with a new connection, unless another scan
+     * already did, and returns the current store.
+     */
+    public synchronized KVStore reconnect(KVStore failed) {
+        if (store == failed) {
+            KVHiveStorePool.invalidate(failed);
+            swap();
+        }
+        return store;
+    }
+
+    private void swap() {
+        KVStore fresh = KVHiveStorePool.acquire(kvStoreName, kvHelperHosts, idleTimeoutMs);
+        KVHiveStorePool.release(store);
+        store = fresh;
+    }
+
+    public synchronized void release() {
+        if (store != null) {
+            KVHiveStorePool.release(store);
+            store = null;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import oracle.kv.KVStore;
+import oracle.kv.KVStoreConfig;
+import oracle.kv.KVStoreFactory;
+
+/**
+ * JVM-wide pool of KVStore handles keyed by store name and helper hosts.
+ * Handles are reference counted, so that record readers and writers running
+ * in the same (possibly reused) task JVM share warm connections. A handle
+ * nobody holds is closed once it has been idle for the configured time.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveStorePool {
+
+    private static final Map<String, Handle> handles = new HashMap<String, Handle>();
+    private static final Map<KVStore, Handle> byStore = new IdentityHashMap<KVStore, Handle>();
+    private static ScheduledExecutorService evictor = null;
+
+    private static class Handle {
+        final String key;
+        final KVStore store;
+        int refCount = 0;
+        long idleSince = 0;
+        long idleTimeoutMs;
+        boolean invalid = false;
+
+        Handle(String key, KVStore store) {
+            this.key = key;
+            this.store = store;
+        }
+    }
+
+    /**
+     * Returns a shared handle for the store, opening it if needed. Every call
+     * must be paired with a call to {@link #release(KVStore)}.
+     */
+    public static KVStore acquire(String kvStoreName, String[] kvHelperHosts, long idleTimeoutMs) {
+        String key = poolKey(kvStoreName, kvHelperHosts);
+        synchronized (handles) {
+            Handle h = handles.get(key);
+            if (h != null) {
+                h.refCount++;
+                h.idleTimeoutMs = idleTimeoutMs;
+                return h.store;
+            }
+        }
+        // open outside the lock, it contacts the store
+        KVStore store = KVStoreFactory.getStore(new KVStoreConfig(kvStoreName, kvHelperHosts));
+        synchronized (handles) {
+            Handle h = handles.get(key);
+            if (h != null) {
+                // somebody else opened it meanwhile
+                store.close();
+            } else {
+                h = new Handle(key, store);
+                handles.put(key, h);
+                byStore.put(store, h);
+            }
+            h.refCount++;
+            h.idleTimeoutMs = idleTimeoutMs;
+            return h.store;
+        }
+    }
+
+    /**
+     * Gives a handle back to the pool. The connection stays open until it has
+     * been idle for the timeout it was acquired with.
+     */
+    public static void release(KVStore store) {
+        KVStore toClose = null;
+        synchronized (handles) {
+            Handle h = byStore.get(store);
+            if (h == null) {
+                toClose = store;
+            } else if (--h.refCount <= 0) {
+                h.refCount = 0;
+                h.idleSince = System.currentTimeMillis();
+                if (h.invalid) {
+                    byStore.remove(store);
+                    toClose = store;
+                } else if (h.idleTimeoutMs <= 0) {
+                    remove(h);
+                    toClose = store;
+                } else {
+                    scheduleEviction(h.idleTimeoutMs);
+                }
+            }
+        }
+        if (toClose != null) {
+            toClose.close();
+        }
+    }
+
+    /**
+     * Takes a handle that stopped working out of the pool: the next acquire
+     * opens a new connection, and this one is closed when its last holder
+     * releases it.
+     */
+    public static void invalidate(KVStore store) {
+        synchronized (handles) {
+            Handle h = byStore.get(store);
+            if (h != null && !h.invalid) {
+                h.invalid = true;
+                if (handles.get(h.key) == h) {
+                    handles.remove(h.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether another holder invalidated the handle, so that this one should
+     * switch to a new connection too.
+     */
+    public static boolean isInvalid(KVStore store) {
+        synchronized (handles) {
+            Handle h = byStore.get(store);
+            return h != null && h.invalid;
+        }
+    }
+
+    private static void scheduleEviction(long delayMs) {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new KVHiveThreadFactory("kv-store-pool"));
+        }
+        evictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<KVStore> toClose = new ArrayList<KVStore>();
+        synchronized (handles) {
+            Iterator<Handle> it = handles.values().iterator();
+            while (it.hasNext()) {
+                Handle h = it.next();
+                if (h.refCount == 0 && now - h.idleSince >= h.idleTimeoutMs) {
+                    it.remove();
+                    byStore.remove(h.store);
+                    toClose.add(h.store);
+                }
+            }
+        }
+        for (KVStore store : toClose) {
+            store.close();
+        }
+    }
+
+    private static void remove(Handle h) {
+        handles.remove(h.key);
+        byStore.remove(h.store);
+    }
+
+    private static String poolKey(String kvStoreName, String[] kvHelperHosts) {
+        String[] hosts = kvHelperHosts.clone();
+        Arrays.sort(hosts);
+        return kvStoreName + "@" + Arrays.toString(hosts);
+    }
+
+}
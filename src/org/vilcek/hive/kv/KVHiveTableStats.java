@@ -0,0 +1,274 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import oracle.kv.Depth;
+import oracle.kv.KeyValueVersion;
+import oracle.kv.impl.api.KVStoreImpl;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.ql.stats.StatsSetupConst;
+
+/**
+ * Collects the size of a KV table and stores it in its parameters, where
+ * split generation finds it. Hive 0.7 does not use these parameters itself:
+ * map join decisions still size the (empty) table location.
+ * <code>hadoop jar HiveKVStorageHandler.jar org.vilcek.hive.kv.KVHiveTableStats [db.]table [-exact]</code>
+ * Records are counted exactly with a keys only scan of every partition;
+ * value bytes are extrapolated from the sampled average record size, unless
+ * -exact asks for a full scan with values. Per partition sizes are stored
+ * in chunks, table parameter values being limited in length.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveTableStats {
+
+    public final static String RAW_DATA_SIZE = "rawDataSize";
+    public final static String KV_STATS_PARTITIONS = "kv.stats.partitions";
+    public final static String KV_STATS_PARTITION_RECORDS = "kv.stats.partition.records.";
+    public final static String KV_STATS_PARTITION_BYTES = "kv.stats.partition.bytes.";
+    public final static String KV_STATS_TIME = "kv.stats.time";
+
+    // metastore parameter values are VARCHAR(4000)
+    private static final int MAX_PARAM_LENGTH = 3900;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: KVHiveTableStats [db.]table [-exact]");
+            System.exit(1);
+        }
+        String dbName = "default";
+        String tableName = args[0];
+        int dot = tableName.indexOf('.');
+        if (dot > 0) {
+            dbName = tableName.substring(0, dot);
+            tableName = tableName.substring(dot + 1);
+        }
+        boolean exact = args.length > 1 && args[1].equals("-exact");
+
+        HiveConf hiveConf = new HiveConf(KVHiveTableStats.class);
+        HiveMetaStoreClient client = new HiveMetaStoreClient(hiveConf);
+        try {
+            Table table = client.getTable(dbName, tableName);
+            Configuration conf = new Configuration(hiveConf);
+            for (Map.Entry<String, String> e : table.getSd().getSerdeInfo().getParameters().entrySet()) {
+                conf.set(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, String> e : table.getParameters().entrySet()) {
+                conf.set(e.getKey(), e.getValue());
+            }
+            Map<String, String> stats = collect(conf, exact);
+            table.getParameters().putAll(stats);
+            client.alter_table(dbName, tableName, table);
+            System.out.println(dbName + "." + tableName + ": " +
+                               StatsSetupConst.ROW_COUNT + "=" + stats.get(StatsSetupConst.ROW_COUNT) + ", " +
+                               StatsSetupConst.TOTAL_SIZE + "=" + stats.get(StatsSetupConst.TOTAL_SIZE) + ", " +
+                               RAW_DATA_SIZE + "=" + stats.get(RAW_DATA_SIZE));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Scans every partition of the store of a table and returns its size
+     * as table parameters.
+     */
+    public static Map<String, String> collect(Configuration conf, final boolean exact) throws Exception {
+        String kvStoreName = ConfigProperties.getKVName(conf);
+        String[] kvHelperHosts = ConfigProperties.getKVHostPort(conf).split(",");
+        final KVHiveStoreHandle handle =
+            new KVHiveStoreHandle(kvStoreName, kvHelperHosts, ConfigProperties.getKVStorePoolIdleTime(conf));
+        ExecutorService executor =
+            Executors.newFixedThreadPool(Math.max(1, ConfigProperties.getKVStatsThreads(conf)),
+                                         new KVHiveThreadFactory("kv-table-stats"));
+        try {
+            KVStoreImpl kvstore = (KVStoreImpl) handle.get();
+            final int nParts = kvstore.getDispatcher().getTopologyManager().getTopology().
+                               getPartitionMap().getNPartitions();
+            int[] partIds = new int[nParts];
+            for (int i = 0; i < nParts; i++) {
+                partIds[i] = i + 1;
+            }
+            KVHivePartitionStats.Estimate[] estimates = null;
+            if (!exact) {
+                estimates = KVHivePartitionStats.get(kvstore, kvStoreName, kvHelperHosts, partIds,
+                                                     Math.max(1, ConfigProperties.getKVStatsSampleSize(conf)),
+                                                     ConfigProperties.getKVStatsThreads(conf), 0);
+            }
+
+            final int batchSize = Math.max(100, ConfigProperties.getKVScanBatchSize(conf));
+            final Configuration scanConf = conf;
+            List<Future<long[]>> futures = new ArrayList<Future<long[]>>(nParts);
+            for (int i = 0; i < nParts; i++) {
+                final int partId = partIds[i];
+                futures.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        return scan(handle, partId, !exact, batchSize, scanConf);
+                    }
+                }));
+            }
+
+            long[] records = new long[nParts];
+            long[] bytes = new long[nParts];
+            long totalRecords = 0;
+            long totalBytes = 0;
+            long valueBytes = 0;
+            for (int i = 0; i < nParts; i++) {
+                long[] counts;
+                try {
+                    counts = futures.get(i).get();
+                } catch (ExecutionException EE) {
+                    throw new Exception("Scan of partition " + partIds[i] + " failed", EE.getCause());
+                }
+                records[i] = counts[0];
+                long keyBytes = counts[1];
+                long partValueBytes = counts[2];
+                if (!exact) {
+                    // extrapolate the sampled record size to the exact count
+                    KVHivePartitionStats.Estimate e = estimates[i];
+                    long sampledBytes = (e == null || e.getRecords() == 0) ?
+                                        keyBytes :
+                                        (long) ((double) e.getBytes() / e.getRecords() * records[i]);
+                    partValueBytes = Math.max(0, sampledBytes - keyBytes);
+                }
+                bytes[i] = keyBytes + partValueBytes;
+                totalRecords += records[i];
+                totalBytes += bytes[i];
+                valueBytes += partValueBytes;
+            }
+
+            Map<String, String> ret = new HashMap<String, String>();
+            ret.put(StatsSetupConst.ROW_COUNT, Long.toString(totalRecords));
+            ret.put(StatsSetupConst.TOTAL_SIZE, Long.toString(totalBytes));
+            ret.put(RAW_DATA_SIZE, Long.toString(valueBytes));
+            ret.put(KV_STATS_PARTITIONS, Integer.toString(nParts));
+            ret.put(KV_STATS_TIME, Long.toString(System.currentTimeMillis()));
+            putChunks(ret, KV_STATS_PARTITION_RECORDS, records);
+            putChunks(ret, KV_STATS_PARTITION_BYTES, bytes);
+            return ret;
+        } finally {
+            executor.shutdownNow();
+            handle.release();
+        }
+    }
+
+    /**
+     * Returns the record count, the key bytes and the value bytes of a
+     * partition, not reading values in keys only mode.
+     */
+    private static long[] scan(KVHiveStoreHandle handle, int partId, boolean keysOnly,
+                               int batchSize, Configuration conf) {
+        Iterator<KeyValueVersion> it =
+            new KVHivePartitionIterator(handle, partId, keysOnly,
+                                        ConfigProperties.getKVScanDirection(conf),
+                                        KVHiveBatchSizer.fixed(batchSize),
+                                        null, null, Depth.PARENT_AND_DESCENDANTS,
+                                        ConfigProperties.getKVScanConsistency(conf),
+                                        ConfigProperties.getKVScanTimeout(conf),
+                                        TimeUnit.MILLISECONDS).
+                setRetries(ConfigProperties.getKVScanRetries(conf),
+                           ConfigProperties.getKVScanRetryBackoff(conf)).
+                setAvoidMaster(ConfigProperties.isKVScanAvoidMaster(conf));
+        long[] ret = new long[3];
+        while (it.hasNext()) {
+            KeyValueVersion kvv = it.next();
+            ret[0]++;
+            ret[1] += kvv.getKey().toByteArray().length;
+            if (!keysOnly) {
+                ret[2] += kvv.getValue().getValue().length;
+            }
+        }
+        return ret;
+    }
+
+    private static void putChunks(Map<String, String> params, String prefix, long[] values) {
+        int chunk = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            String v = Long.toString(values[i]);
+            if (sb.length() > 0 && sb.length() + 1 + v.length() > MAX_PARAM_LENGTH) {
+                params.put(prefix + chunk++, sb.toString());
+                sb.setLength(0);
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(v);
+        }
+        params.put(prefix + chunk, sb.toString());
+    }
+
+    /**
+     * Returns the collected record counts and byte sizes of the partitions,
+     * indexed by partition id - 1, or null if the table has no statistics
+     * for a store with nParts partitions, or they are older than
+     * kv.stats.max.age.ms.
+     */
+    public static long[][] getPartitionSizes(Configuration conf, int nParts) {
+        if (conf.getInt(KV_STATS_PARTITIONS, 0) != nParts) {
+            return null;
+        }
+        long maxAge = ConfigProperties.getKVStatsMaxAge(conf);
+        if (maxAge > 0 && System.currentTimeMillis() - conf.getLong(KV_STATS_TIME, 0) > maxAge) {
+            return null;
+        }
+        long[] records = getChunks(conf, KV_STATS_PARTITION_RECORDS, nParts);
+        long[] bytes = getChunks(conf, KV_STATS_PARTITION_BYTES, nParts);
+        if (records == null || bytes == null) {
+            return null;
+        }
+        return new long[][] {records, bytes};
+    }
+
+    private static long[] getChunks(Configuration conf, String prefix, int n) {
+        long[] ret = new long[n];
+        int i = 0;
+        for (int chunk = 0; i < n; chunk++) {
+            String s = conf.get(prefix + chunk);
+            if (s == null) {
+                return null;
+            }
+            for (String v : s.split(",")) {
+                if (i >= n) {
+                    return null;
+                }
+                try {
+                    ret[i++] = Long.parseLong(v);
+                } catch (NumberFormatException NFE) {
+                    return null;
+                }
+            }
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package org.vilcek.hive.kv;
+
+import java.lang.reflect.Method;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import oracle.kv.KVStoreException;
+import oracle.kv.impl.api.rgstate.RepNodeState;
+import oracle.kv.impl.rep.RepNodeStatus;
+import oracle.kv.impl.rep.admin.RepNodeAdminAPI;
+import oracle.kv.impl.topo.RepNode;
+import oracle.kv.impl.topo.RepNodeId;
+import oracle.kv.impl.topo.Topology;
+import oracle.kv.impl.util.TopologyLocator;
+import oracle.kv.impl.util.registry.RegistryUtils;
+
+/**
+ * JVM-wide cache of store topologies and RepNode health. Every RepNode is
+ * pinged once per refresh, concurrently and with a timeout, and the result
+ * is reused by every partition of its replication group.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveTopologyCache {
+
+    private static final Map<String, Entry> cache = new HashMap<String, Entry>();
+
+    public static class Entry {
+        private final Topology topology;
+        private final Map<RepNodeId, RepNodeStatus> status;
+        private final long created;
+
+        Entry(Topology topology, Map<RepNodeId, RepNodeStatus> status) {
+            this.topology = topology;
+            this.status = status;
+            this.created = System.currentTimeMillis();
+        }
+
+        public Topology getTopology() {
+            return topology;
+        }
+
+        /**
+         * Returns the last ping result for the RepNode, or null if it did
+         * not answer within the timeout.
+         */
+        public RepNodeStatus getStatus(RepNodeId rnId) {
+            return status.get(rnId);
+        }
+    }
+
+    /**
+     * Returns the topology and RepNode health of a store, reusing a cached
+     * copy younger than ttlMs.
+     */
+    public static Entry get(String kvStoreName, String[] kvHelperHosts, long ttlMs,
+                            long pingTimeoutMs, int pingThreads) throws KVStoreException {
+        String cacheKey = cacheKey(kvStoreName, kvHelperHosts);
+        synchronized (cache) {
+            Entry e = cache.get(cacheKey);
+            if (e != null && System.currentTimeMillis() - e.created < ttlMs) {
+                return e;
+            }
+        }
+        Topology topology = TopologyLocator.get(kvHelperHosts, 0);
+        Entry e = new Entry(topology, ping(topology, pingTimeoutMs, pingThreads));
+        if (ttlMs > 0) {
+            synchronized (cache) {
+                cache.put(cacheKey, e);
+            }
+        }
+        return e;
+    }
+
+    private static Map<RepNodeId, RepNodeStatus> ping(Topology topology, long pingTimeoutMs,
+                                                     int pingThreads) {
+        final RegistryUtils regUtils = new RegistryUtils(topology);
+        List<RepNode> repNodes = topology.getSortedRepNodes();
+        Map<RepNodeId, RepNodeStatus> ret = new HashMap<RepNodeId, RepNodeStatus>();
+        if (repNodes.isEmpty()) {
+            return ret;
+        }
+        ExecutorService executor =
+            Executors.newFixedThreadPool(Math.max(1, Math.min(pingThreads, repNodes.size())),
+                                         new KVHiveThreadFactory("kv-rn-ping"));
+        try {
+            List<Future<RepNodeStatus>> futures = new ArrayList<Future<RepNodeStatus>>(repNodes.size());
+            for (final RepNode rn : repNodes) {
+                futures.add(executor.submit(new Callable<RepNodeStatus>() {
+                    @Override
+                    public RepNodeStatus call() throws Exception {
+                        RepNodeAdminAPI rna = regUtils.getRepNodeAdmin(rn.getResourceId());
+                        return rna.ping();
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + pingTimeoutMs;
+            for (int i = 0; i < repNodes.size(); i++) {
+                RepNodeId rnId = repNodes.get(i).getResourceId();
+                Future<RepNodeStatus> f = futures.get(i);
+                try {
+                    long wait = Math.max(0, deadline - System.currentTimeMillis());
+                    ret.put(rnId, f.get(wait, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException te) {
+                    f.cancel(true);
+                    System.err.println("Ping timed out for " + rnId);
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof NotBoundException) {
+                        System.err.println("No RMI service for RN: " + rnId +
+                                           " message: " + cause.getMessage());
+                    } else if (cause instanceof RemoteException) {
+                        System.err.println("Ping failed for " + rnId + ": " +
+                                           cause.getMessage());
+                    } else {
+                        cause.printStackTrace();
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    /**
+     * Returns the replication state (MASTER, REPLICA, UNKNOWN or DETACHED)
+     * of a pinged RepNode, or null if it is not known.
+     */
+    public static String getReplicationState(RepNodeStatus status) {
+        return stateName(status, "getReplicationState");
+    }
+
+    /**
+     * Returns the replication state of a RepNode as last seen by the client
+     * dispatcher, or null if it is not known.
+     */
+    public static String getReplicationState(RepNodeState state) {
+        return stateName(state, "getRepState");
+    }
+
+    // the client library ships ReplicatedEnvironment.State without
+    // ReplicatedEnvironment itself, so the state can not be used in code
+    // compiled against it and has to be read reflectively
+    private static String stateName(Object o, String getter) {
+        if (o == null) {
+            return null;
+        }
+        try {
+            Method m = o.getClass().getMethod(getter);
+            Object state = m.invoke(o);
+            return (state == null) ? null : ((Enum<?>) state).name();
+        } catch (Exception e) {
+            System.err.println("Can not read the replication state: " + e);
+            return null;
+        }
+    }
+
+    static String cacheKey(String kvStoreName, String[] kvHelperHosts) {
+        String[] hosts = kvHelperHosts.clone();
+        Arrays.sort(hosts);
+        return kvStoreName + "@" + Arrays.toString(hosts);
+    }
+
+}
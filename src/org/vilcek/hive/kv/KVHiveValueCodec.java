@@ -0,0 +1,364 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Compresses values with a Hadoop codec on writes and decompresses them on
+ * reads. A compressed value starts with a header: the byte 0xfe, which
+ * never occurs in UTF-8 text, "KZ", the codec id and the uncompressed
+ * length as a vint. It is followed by the compressed data in chunks of at
+ * most CHUNK_SIZE uncompressed bytes, each preceded by its compressed length.
+ * The header is only looked for when the table sets a codec. Values without
+ * it are then read as they are, so a table can hold both, and a value that
+ * does not get smaller is stored uncompressed. Such a value that happens to
+ * start with the header bytes is written with a header of codec id 0
+ * instead, followed by the value itself.
+ * Not thread safe.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveValueCodec {
+
+    private static final byte[] MAGIC = new byte[] {(byte) 0xfe, 'K', 'Z'};
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // codec ids stored in the header; CUSTOM is the class set in the table
+    private static final int NONE = 0;
+    private static final int CUSTOM = 4;
+    private static final String[] CODEC_NAMES = new String[] {
+        "none", "deflate", "snappy", "lz4"
+    };
+    private static final String[] CODEC_CLASSES = new String[] {
+        null,
+        "org.apache.hadoop.io.compress.DefaultCodec",
+        "org.apache.hadoop.io.compress.SnappyCodec",
+        "org.apache.hadoop.io.compress.Lz4Codec"
+    };
+
+    private final Configuration conf;
+    private final int codecId;
+    private final String customClass;
+    private final CompressionCodec[] codecs = new CompressionCodec[CUSTOM + 1];
+    private final Decompressor[] decompressors = new Decompressor[CUSTOM + 1];
+    private Compressor compressor = null;
+
+    // uncompressed values of the current row, see reset
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int bufferLen = 0;
+    private int lastStart = 0;
+    private byte[] compressBuffer = new byte[0];
+
+    /**
+     * name is none, deflate, snappy, lz4 or the class name of a Hadoop
+     * CompressionCodec, or null for none.
+     */
+    public KVHiveValueCodec(Configuration conf, String name) {
+        this.conf = conf;
+        String customClassName = null;
+        int id = -1;
+        if (name == null) {
+            id = NONE;
+        } else {
+            for (int i = 0; i < CODEC_NAMES.length; i++) {
+                if (CODEC_NAMES[i].equalsIgnoreCase(name.trim())) {
+                    id = i;
+                }
+            }
+            if (id < 0) {
+                id = CUSTOM;
+                customClassName = name.trim();
+            }
+        }
+        codecId = id;
+        customClass = customClassName;
+    }
+
+    public static KVHiveValueCodec fromConf(Configuration c) {
+        return new KVHiveValueCodec(c, ConfigProperties.getKVValueCompression(c));
+    }
+
+    /**
+     * Checks that the codec can be loaded, so that a wrong setting fails
+     * early.
+     */
+    public void validate() {
+        if (codecId != NONE) {
+            getCodec(codecId);
+        }
+    }
+
+    /**
+     * Whether the table sets a codec, and so values have to be checked for
+     * the header on reads.
+     */
+    public boolean isEnabled() {
+        return codecId != NONE;
+    }
+
+    public static boolean isCompressed(byte[] b, int start, int len) {
+        return len > HEADER_LENGTH &&
+               b[start] == MAGIC[0] && b[start + 1] == MAGIC[1] && b[start + 2] == MAGIC[2];
+    }
+
+    /**
+     * Starts a new row: the values decompressed for the previous row are
+     * overwritten from now on.
+     */
+    public void reset() {
+        bufferLen = 0;
+    }
+
+    /**
+     * Decompresses a value that isCompressed, after the values already
+     * decompressed for the current row, and returns the buffer holding it,
+     * from getStart() for getLength() bytes.
+     */
+    public byte[] decompress(byte[] b, int start, int len) throws IOException {
+        int end = start + len;
+        int id = b[start + MAGIC.length];
+        if (id < NONE || id > CUSTOM) {
+            throw new IOException("Unknown compression codec id " + id + " in value header");
+        }
+        int p = start + HEADER_LENGTH;
+        int lengthSize = WritableUtils.decodeVIntSize(b[p]);
+        long rawLength = readVLong(b, p);
+        p += lengthSize;
+        if (rawLength < 0 || rawLength > Integer.MAX_VALUE - bufferLen) {
+            throw new IOException("Corrupt compressed value, length " + rawLength);
+        }
+        if (bufferLen + rawLength > buffer.length) {
+            // slices of the current row keep the old buffer
+            buffer = Arrays.copyOf(buffer, (int) Math.max(buffer.length * 2L, bufferLen + rawLength));
+        }
+        lastStart = bufferLen;
+        int out = bufferLen;
+        int outEnd = bufferLen + (int) rawLength;
+        if (id == NONE) {
+            // stored as it is, see compress
+            if (p + rawLength > end) {
+                throw new IOException("Truncated compressed value");
+            }
+            System.arraycopy(b, p, buffer, out, (int) rawLength);
+            bufferLen = outEnd;
+            return buffer;
+        }
+        Decompressor decompressor = getDecompressor(id);
+        while (out < outEnd) {
+            if (p >= end) {
+                throw new IOException("Truncated compressed value");
+            }
+            int sizeLen = WritableUtils.decodeVIntSize(b[p]);
+            int chunkLen = (int) readVLong(b, p);
+            p += sizeLen;
+            if (chunkLen < 0 || p + chunkLen > end) {
+                throw new IOException("Truncated compressed value");
+            }
+            int chunkEnd = Math.min(outEnd, out + CHUNK_SIZE);
+            decompressor.reset();
+            decompressor.setInput(b, p, chunkLen);
+            while (out < chunkEnd) {
+                int n = decompressor.decompress(buffer, out, chunkEnd - out);
+                if (n == 0 && (decompressor.finished() || decompressor.needsInput())) {
+                    throw new IOException("Corrupt compressed value");
+                }
+                out += n;
+            }
+            p += chunkLen;
+        }
+        bufferLen = outEnd;
+        return buffer;
+    }
+
+    public int getStart() {
+        return lastStart;
+    }
+
+    public int getLength() {
+        return bufferLen - lastStart;
+    }
+
+    /**
+     * Returns b[start, start+len) compressed with the codec of the table, or
+     * as it is if there is no codec or compressing does not make it smaller.
+     * With a codec, a value kept as it is that would be taken for a
+     * compressed one gets a header of id NONE.
+     */
+    public byte[] compress(byte[] b, int start, int len) throws IOException {
+        if (codecId == NONE) {
+            return copy(b, start, len);
+        }
+        if (compressor == null) {
+            compressor = CodecPool.getCompressor(getCodec(codecId));
+        }
+        // worst case of the supported codecs is about len + len / 6 per chunk
+        int bound = HEADER_LENGTH + 5 + len + len / 6 + 64 * (len / CHUNK_SIZE + 1);
+        if (compressBuffer.length < bound) {
+            compressBuffer = new byte[bound];
+        }
+        System.arraycopy(MAGIC, 0, compressBuffer, 0, MAGIC.length);
+        compressBuffer[MAGIC.length] = (byte) codecId;
+        int p = HEADER_LENGTH + writeVLong(compressBuffer, HEADER_LENGTH, len);
+        for (int off = 0; off < len; off += CHUNK_SIZE) {
+            int chunkLen = Math.min(CHUNK_SIZE, len - off);
+            compressor.reset();
+            compressor.setInput(b, start + off, chunkLen);
+            compressor.finish();
+            // the chunk goes after room for its length, moved back below
+            int dataStart = p + 5;
+            int q = dataStart;
+            while (!compressor.finished()) {
+                if (q == compressBuffer.length) {
+                    compressBuffer = Arrays.copyOf(compressBuffer, compressBuffer.length * 2);
+                }
+                q += compressor.compress(compressBuffer, q, compressBuffer.length - q);
+            }
+            int sizeLen = writeVLong(compressBuffer, p, q - dataStart);
+            System.arraycopy(compressBuffer, dataStart, compressBuffer, p + sizeLen, q - dataStart);
+            p += sizeLen + q - dataStart;
+            if (p >= len) {
+                return store(b, start, len);
+            }
+        }
+        return Arrays.copyOf(compressBuffer, p);
+    }
+
+    private byte[] store(byte[] b, int start, int len) {
+        if (!isCompressed(b, start, len)) {
+            return copy(b, start, len);
+        }
+        System.arraycopy(MAGIC, 0, compressBuffer, 0, MAGIC.length);
+        compressBuffer[MAGIC.length] = (byte) NONE;
+        int p = HEADER_LENGTH + writeVLong(compressBuffer, HEADER_LENGTH, len);
+        byte[] ret = Arrays.copyOf(compressBuffer, p + len);
+        System.arraycopy(b, start, ret, p, len);
+        return ret;
+    }
+
+    /**
+     * Returns the pooled compressors and decompressors.
+     */
+    public void close() {
+        if (compressor != null) {
+            CodecPool.returnCompressor(compressor);
+            compressor = null;
+        }
+        for (int i = 0; i < decompressors.length; i++) {
+            if (decompressors[i] != null) {
+                CodecPool.returnDecompressor(decompressors[i]);
+                decompressors[i] = null;
+            }
+        }
+    }
+
+    private Decompressor getDecompressor(int id) throws IOException {
+        if (decompressors[id] == null) {
+            try {
+                decompressors[id] = CodecPool.getDecompressor(getCodec(id));
+            } catch (RuntimeException RE) {
+                throw new IOException(RE.getMessage(), RE);
+            }
+        }
+        return decompressors[id];
+    }
+
+    private CompressionCodec getCodec(int id) {
+        if (codecs[id] == null) {
+            String className = (id == CUSTOM) ? customClass : CODEC_CLASSES[id];
+            if (className == null) {
+                throw new IllegalArgumentException("Values compressed with a custom codec, but " +
+                                                   ConfigProperties.KV_VALUE_COMPRESSION +
+                                                   " does not name its class");
+            }
+            try {
+                codecs[id] = (CompressionCodec) ReflectionUtils.newInstance(conf.getClassByName(className), conf);
+            } catch (ClassNotFoundException CNFE) {
+                throw new IllegalArgumentException("Invalid " + ConfigProperties.KV_VALUE_COMPRESSION +
+                                                   ": codec class " + className + " not found");
+            } catch (ClassCastException CCE) {
+                throw new IllegalArgumentException("Invalid " + ConfigProperties.KV_VALUE_COMPRESSION +
+                                                   ": " + className + " is not a CompressionCodec");
+            }
+        }
+        return codecs[id];
+    }
+
+    private static byte[] copy(byte[] b, int start, int len) {
+        if (start == 0 && len == b.length) {
+            return b;
+        }
+        return Arrays.copyOfRange(b, start, start + len);
+    }
+
+    /**
+     * Same encoding as WritableUtils.writeVLong, into b at p. Returns the
+     * number of bytes written, at most 5 for an int.
+     */
+    private static int writeVLong(byte[] b, int p, long i) {
+        if (i >= -112 && i <= 127) {
+            b[p] = (byte) i;
+            return 1;
+        }
+        int len = -112;
+        if (i < 0) {
+            i ^= -1L;
+            len = -120;
+        }
+        long tmp = i;
+        while (tmp != 0) {
+            tmp = tmp >> 8;
+            len--;
+        }
+        b[p] = (byte) len;
+        len = (len < -120) ? -(len + 120) : -(len + 112);
+        for (int idx = len; idx != 0; idx--) {
+            int shiftbits = (idx - 1) * 8;
+            b[++p] = (byte) ((i & (0xFFL << shiftbits)) >> shiftbits);
+        }
+        return len + 1;
+    }
+
+    /**
+     * Same encoding as WritableUtils.readVLong, from b at p.
+     */
+    private static long readVLong(byte[] b, int p) {
+        byte first = b[p];
+        int len = WritableUtils.decodeVIntSize(first);
+        if (len == 1) {
+            return first;
+        }
+        long i = 0;
+        for (int idx = 0; idx < len - 1; idx++) {
+            i = i << 8;
+            i = i | (b[p + 1 + idx] & 0xFF);
+        }
+        return (WritableUtils.isNegativeVInt(first) ? (i ^ -1L) : i);
+    }
+
+}
@@ -0,0 +1,421 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Layout of a value that holds several fields, each mapped to its own Hive
+ * column: a JSON object (fields by name) or delimited text (fields by
+ * position). Only the projected fields are located, straight in the value
+ * bytes, and parsing stops as soon as all of them are found. Every field
+ * becomes a slice of the value, like a key component, and is decoded only
+ * when Hive reads it; JSON strings with escapes are the only fields copied.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public abstract class KVHiveValueFormat {
+
+    private static final byte[] SERIALIZED_NULL = KVHiveColumnMapping.utf8("(null)");
+
+    protected final String[] fieldNames;
+    protected final byte[][] fieldBytes;
+    protected final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    protected KVHiveValueFormat(String[] fields) {
+        fieldNames = fields;
+        fieldBytes = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            fieldBytes[i] = KVHiveColumnMapping.utf8(fields[i]);
+        }
+    }
+
+    public int getFieldCount() {
+        return fieldBytes.length;
+    }
+
+    /**
+     * Sets column first + i of the row to field i of b[start, start+len), for
+     * every i with projected[first + i]. Missing and null fields, and all
+     * fields after a syntax error, are left NULL.
+     */
+    public abstract void parse(byte[] b, int start, int len, boolean[] projected, KVHiveRow row, int first);
+
+    /**
+     * Builds a value from the UTF-8 text of every field, or null for a NULL
+     * field. quoted tells which fields are strings. Throws an
+     * IllegalArgumentException for a field the format can not hold.
+     */
+    public abstract byte[] format(byte[][] values, boolean[] quoted);
+
+    public static KVHiveValueFormat forName(String format, String[] fields, String delimiter) {
+        if (format.equalsIgnoreCase(ConfigProperties.VALUE_FORMAT_JSON)) {
+            return new Json(fields);
+        } else if (format.equalsIgnoreCase(ConfigProperties.VALUE_FORMAT_DELIMITED)) {
+            byte[] d = KVHiveColumnMapping.utf8(delimiter);
+            if (d.length != 1) {
+                throw new IllegalArgumentException("Invalid " + ConfigProperties.KV_VALUE_DELIMITER + ": \"" +
+                                                   delimiter + "\", expected a single ASCII character");
+            }
+            return new Delimited(fields, d[0]);
+        }
+        throw new IllegalArgumentException("Invalid " + ConfigProperties.KV_VALUE_FORMAT + ": " + format);
+    }
+
+    private static int countProjected(boolean[] projected, int first, int n) {
+        int ret = 0;
+        for (int i = 0; i < n; i++) {
+            if (projected[first + i]) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Fields separated by a single byte, without quoting or escapes. A field
+     * holding the serialized NULL is NULL, so neither it nor a field holding
+     * the delimiter can be written.
+     */
+    private static final class Delimited extends KVHiveValueFormat {
+        private final byte delimiter;
+
+        Delimited(String[] fields, byte delimiter) {
+            super(fields);
+            this.delimiter = delimiter;
+        }
+
+        @Override
+        public void parse(byte[] b, int start, int len, boolean[] projected, KVHiveRow row, int first) {
+            int last = -1;
+            for (int i = 0; i < fieldBytes.length; i++) {
+                if (projected[first + i]) {
+                    last = i;
+                }
+            }
+            int end = start + len;
+            int fieldStart = start;
+            for (int i = 0; i <= last && fieldStart <= end; i++) {
+                int p = fieldStart;
+                while (p < end && b[p] != delimiter) {
+                    p++;
+                }
+                int fieldLen = p - fieldStart;
+                if (projected[first + i] && !isSerializedNull(b, fieldStart, fieldLen)) {
+                    row.set(first + i, b, fieldStart, fieldLen);
+                }
+                fieldStart = p + 1;
+            }
+        }
+
+        @Override
+        public byte[] format(byte[][] values, boolean[] quoted) {
+            out.reset();
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(delimiter);
+                }
+                byte[] v = values[i];
+                if (v == null) {
+                    v = SERIALIZED_NULL;
+                } else if (isSerializedNull(v, 0, v.length) || indexOf(v, delimiter) >= 0) {
+                    throw new IllegalArgumentException("Value field " + fieldNames[i] +
+                                                       " can not be stored: it holds the delimiter or " +
+                                                       "reads as NULL");
+                }
+                out.write(v, 0, v.length);
+            }
+            return out.toByteArray();
+        }
+
+        private static int indexOf(byte[] b, byte c) {
+            for (int i = 0; i < b.length; i++) {
+                if (b[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean isSerializedNull(byte[] b, int start, int len) {
+            return len == SERIALIZED_NULL.length &&
+                   KVHiveColumnMapping.regionEquals(SERIALIZED_NULL, b, start, len);
+        }
+    }
+
+    /**
+     * A JSON object whose top level members are the fields. Nested objects
+     * and arrays are returned as their JSON text.
+     */
+    private static final class Json extends KVHiveValueFormat {
+        private static final byte[] HEX = KVHiveColumnMapping.utf8("0123456789abcdef");
+
+        // unescaped strings of the current value
+        private byte[] scratch = new byte[256];
+        private int scratchLen = 0;
+
+        Json(String[] fields) {
+            super(fields);
+        }
+
+        @Override
+        public void parse(byte[] b, int start, int len, boolean[] projected, KVHiveRow row, int first) {
+            int wanted = countProjected(projected, first, fieldBytes.length);
+            int end = start + len;
+            scratchLen = 0;
+            int p = skipSpace(b, start, end);
+            if (wanted == 0 || p >= end || b[p] != '{') {
+                return;
+            }
+            p = skipSpace(b, p + 1, end);
+            while (p < end && b[p] == '"') {
+                int nameEnd = skipString(b, p, end);
+                if (nameEnd < 0) {
+                    return;
+                }
+                int field = findField(b, p + 1, nameEnd - p - 2);
+                p = skipSpace(b, nameEnd, end);
+                if (p >= end || b[p] != ':') {
+                    return;
+                }
+                p = skipSpace(b, p + 1, end);
+                int valueEnd = skipValue(b, p, end);
+                if (valueEnd < 0) {
+                    return;
+                }
+                if (field >= 0 && projected[first + field] && row.isNull(first + field)) {
+                    setField(b, p, valueEnd, row, first + field);
+                    if (--wanted == 0) {
+                        return;
+                    }
+                }
+                p = skipSpace(b, valueEnd, end);
+                if (p >= end || b[p] != ',') {
+                    return;
+                }
+                p = skipSpace(b, p + 1, end);
+            }
+        }
+
+        private void setField(byte[] b, int start, int end, KVHiveRow row, int col) {
+            if (b[start] != '"') {
+                if (!(end - start == 4 && b[start] == 'n')) {
+                    row.set(col, b, start, end - start);
+                }
+                return;
+            }
+            int p = start + 1;
+            int last = end - 1;
+            while (p < last && b[p] != '\\') {
+                p++;
+            }
+            if (p == last) {
+                row.set(col, b, start + 1, last - start - 1);
+                return;
+            }
+            int from = scratchLen;
+            for (p = start + 1; p < last; p++) {
+                if (b[p] != '\\') {
+                    put(b[p]);
+                    continue;
+                }
+                byte c = b[++p];
+                if (c == 'u' && p + 4 < last) {
+                    int cp = hex(b, p + 1);
+                    p += 4;
+                    if (cp >= 0xd800 && cp < 0xdc00 && p + 6 < last && b[p + 1] == '\\' && b[p + 2] == 'u') {
+                        int low = hex(b, p + 3);
+                        if (low >= 0xdc00 && low < 0xe000) {
+                            cp = 0x10000 + ((cp - 0xd800) << 10) + (low - 0xdc00);
+                            p += 6;
+                        }
+                    }
+                    putCodePoint(cp);
+                } else {
+                    put(c == 'n' ? (byte) '\n' :
+                        c == 't' ? (byte) '\t' :
+                        c == 'r' ? (byte) '\r' :
+                        c == 'b' ? (byte) '\b' :
+                        c == 'f' ? (byte) '\f' : c);
+                }
+            }
+            row.set(col, scratch, from, scratchLen - from);
+        }
+
+        private void put(byte c) {
+            if (scratchLen == scratch.length) {
+                // slices of the current row keep the old array
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            scratch[scratchLen++] = c;
+        }
+
+        private void putCodePoint(int cp) {
+            if (cp < 0x80) {
+                put((byte) cp);
+            } else if (cp < 0x800) {
+                put((byte) (0xc0 | (cp >> 6)));
+                put((byte) (0x80 | (cp & 0x3f)));
+            } else if (cp < 0x10000) {
+                put((byte) (0xe0 | (cp >> 12)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                put((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                put((byte) (0xf0 | (cp >> 18)));
+                put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                put((byte) (0x80 | (cp & 0x3f)));
+            }
+        }
+
+        private static int hex(byte[] b, int start) {
+            int ret = 0;
+            for (int i = start; i < start + 4; i++) {
+                int d = Character.digit((char) b[i], 16);
+                if (d < 0) {
+                    return '?';
+                }
+                ret = (ret << 4) | d;
+            }
+            return ret;
+        }
+
+        private int findField(byte[] b, int start, int len) {
+            for (int i = 0; i < fieldBytes.length; i++) {
+                byte[] name = fieldBytes[i];
+                if (name.length == len && KVHiveColumnMapping.regionEquals(name, b, start, len)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int skipSpace(byte[] b, int p, int end) {
+            while (p < end && (b[p] == ' ' || b[p] == '\t' || b[p] == '\n' || b[p] == '\r')) {
+                p++;
+            }
+            return p;
+        }
+
+        /**
+         * Position right after the string starting at b[p], or -1.
+         */
+        private static int skipString(byte[] b, int p, int end) {
+            for (p++; p < end; p++) {
+                if (b[p] == '\\') {
+                    p++;
+                } else if (b[p] == '"') {
+                    return p + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Position right after the value starting at b[p], or -1.
+         */
+        private static int skipValue(byte[] b, int p, int end) {
+            if (p >= end) {
+                return -1;
+            }
+            if (b[p] == '"') {
+                return skipString(b, p, end);
+            }
+            if (b[p] == '{' || b[p] == '[') {
+                int depth = 0;
+                for (; p < end; p++) {
+                    if (b[p] == '"') {
+                        p = skipString(b, p, end) - 1;
+                        if (p < 0) {
+                            return -1;
+                        }
+                    } else if (b[p] == '{' || b[p] == '[') {
+                        depth++;
+                    } else if ((b[p] == '}' || b[p] == ']') && --depth == 0) {
+                        return p + 1;
+                    }
+                }
+                return -1;
+            }
+            int start = p;
+            while (p < end && b[p] != ',' && b[p] != '}' && b[p] != ']' &&
+                   b[p] != ' ' && b[p] != '\t' && b[p] != '\n' && b[p] != '\r') {
+                p++;
+            }
+            return p > start ? p : -1;
+        }
+
+        @Override
+        public byte[] format(byte[][] values, boolean[] quoted) {
+            out.reset();
+            out.write('{');
+            boolean empty = true;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) {
+                    continue;
+                }
+                if (!empty) {
+                    out.write(',');
+                }
+                empty = false;
+                writeString(fieldBytes[i]);
+                out.write(':');
+                if (quoted[i] || !isFinite(values[i])) {
+                    // NaN and the infinities are no JSON numbers, and read back from strings
+                    writeString(values[i]);
+                } else {
+                    out.write(values[i], 0, values[i].length);
+                }
+            }
+            out.write('}');
+            return out.toByteArray();
+        }
+
+        private static boolean isFinite(byte[] number) {
+            for (byte c : number) {
+                if (c == 'N' || c == 'I') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeString(byte[] s) {
+            out.write('"');
+            for (byte c : s) {
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                    out.write(c);
+                } else if (c >= 0 && c < 0x20) {
+                    out.write('\\');
+                    out.write('u');
+                    out.write('0');
+                    out.write('0');
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xf]);
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('"');
+        }
+    }
+
+}
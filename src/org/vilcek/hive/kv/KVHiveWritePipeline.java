@@ -0,0 +1,179 @@
+/*
+* This file is part of Hive KV Storage Handler
+* Copyright 2012 Alexandre Vilcek (alexandre.vilcek@oracle.com)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+
+package org.vilcek.hive.kv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import oracle.kv.KVStore;
+import oracle.kv.Operation;
+import oracle.kv.impl.api.KVStoreImpl;
+import oracle.kv.impl.topo.RepGroupId;
+import oracle.kv.impl.topo.Topology;
+
+/**
+ * Sends write batches to the store asynchronously, with a few worker
+ * threads per replication group, each fed by its own bounded queue. A batch
+ * is routed to the group that owns the partition of its major path, using
+ * the same partition lookup as KVHiveInputFormat.getSplits, and always to
+ * the same worker of that group, so writes to one major path keep their
+ * order. Writes to different groups proceed in parallel, and a slow group
+ * only blocks the writer when its own queues are full.
+ *
+ * @author Alexandre Vilcek (alexandre.vilcek@oracle.com)
+ */
+public class KVHiveWritePipeline implements Closeable {
+
+    private static final List<Operation> END = Collections.emptyList();
+
+    private final KVStore kvstore;
+    private final Topology topology;
+    private final int threadsPerGroup;
+    private final int queueSize;
+    private final Map<RepGroupId, List<BlockingQueue<List<Operation>>>> queues =
+        new HashMap<RepGroupId, List<BlockingQueue<List<Operation>>>>();
+    private final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+    private volatile Throwable failure = null;
+
+    public KVHiveWritePipeline(KVStore kvstore, int threadsPerGroup, int queueSize) {
+        this.kvstore = kvstore;
+        this.topology = ((KVStoreImpl) kvstore).getDispatcher().getTopologyManager().getTopology();
+        this.threadsPerGroup = Math.max(1, threadsPerGroup);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Queues a batch of operations that all share the major path whose key
+     * bytes are given. Blocks while the queue of the target replication
+     * group is full.
+     */
+    public void submit(byte[] majorKeyBytes, List<Operation> batch) throws IOException {
+        checkFailure();
+        RepGroupId repGroupId = topology.getRepGroupId(topology.getPartitionId(majorKeyBytes));
+        List<BlockingQueue<List<Operation>>> groupQueues = queues.get(repGroupId);
+        if (groupQueues == null) {
+            groupQueues = start(repGroupId);
+        }
+        int worker = (Arrays.hashCode(majorKeyBytes) & Integer.MAX_VALUE) % threadsPerGroup;
+        try {
+            groupQueues.get(worker).put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private List<BlockingQueue<List<Operation>>> start(RepGroupId repGroupId) {
+        List<BlockingQueue<List<Operation>>> groupQueues =
+            new ArrayList<BlockingQueue<List<Operation>>>(threadsPerGroup);
+        ExecutorService executor =
+            Executors.newFixedThreadPool(threadsPerGroup,
+                                         new KVHiveThreadFactory("kv-write-" + repGroupId));
+        for (int i = 0; i < threadsPerGroup; i++) {
+            final BlockingQueue<List<Operation>> queue =
+                new ArrayBlockingQueue<List<Operation>>(queueSize);
+            groupQueues.add(queue);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(queue);
+                }
+            });
+        }
+        executor.shutdown();
+        queues.put(repGroupId, groupQueues);
+        executors.add(executor);
+        return groupQueues;
+    }
+
+    private void drain(BlockingQueue<List<Operation>> queue) {
+        while (true) {
+            List<Operation> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == END) {
+                return;
+            }
+            if (failure != null) {
+                // keep draining so that the writer never blocks on a dead queue
+                continue;
+            }
+            try {
+                kvstore.execute(batch);
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write to the KV store failed", failure);
+        }
+    }
+
+    /**
+     * Waits until every queued batch is written, then stops the workers.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (List<BlockingQueue<List<Operation>>> groupQueues : queues.values()) {
+                for (BlockingQueue<List<Operation>> queue : groupQueues) {
+                    queue.put(END);
+                }
+            }
+            for (ExecutorService executor : executors) {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            queues.clear();
+            executors.clear();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the workers without waiting for queued batches.
+     */
+    public void abort() {
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+        queues.clear();
+        executors.clear();
+    }
+
+}